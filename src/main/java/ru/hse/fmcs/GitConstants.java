@@ -18,6 +18,22 @@ public final class GitConstants {
     public static final @NotNull String BRANCH_REMOVE = "branch-remove";
     public static final @NotNull String SHOW_BRANCHES = "show-branches";
     public static final @NotNull String MERGE = "merge";
+    public static final @NotNull String SPARSE_CHECKOUT = "sparse-checkout";
+    public static final @NotNull String WORKTREE = "worktree";
+    public static final @NotNull String CLONE = "clone";
+    public static final @NotNull String BUNDLE = "bundle";
+    public static final @NotNull String PUSH = "push";
+    public static final @NotNull String PULL = "pull";
+    public static final @NotNull String ARCHIVE = "archive";
+    public static final @NotNull String FSCK = "fsck";
+    public static final @NotNull String GC = "gc";
+    public static final @NotNull String DIFF = "diff";
+    public static final @NotNull String BLAME = "blame";
+    public static final @NotNull String GREP = "grep";
+    public static final @NotNull String FAST_IMPORT = "fast-import";
+    public static final @NotNull String STATS = "stats";
+    public static final @NotNull String DEEPEN = "deepen";
+    public static final @NotNull String SHOW = "show";
 
     public static final @NotNull String MASTER = "master";
 }
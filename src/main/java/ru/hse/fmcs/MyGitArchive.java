@@ -0,0 +1,266 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/*
+ * Export of a commit as a tar or zip archive, written straight from the object store.
+ * Files go in sorted path order. Small files are read ahead by a few threads while the archive
+ * is being written, the read-ahead is limited both in files and in bytes, large files are streamed.
+ */
+public class MyGitArchive {
+    public static final String TAR = "tar";
+    public static final String ZIP = "zip";
+    private static final int PREFETCH_THREADS = 4;
+    private static final int PREFETCH_FILES = 64;
+    private static final long PREFETCH_BYTES = 16 << 20;
+    private static final long PREFETCH_MAX_FILE_SIZE = 1 << 20;
+
+    private interface Writer {
+        void putFile(String path, long size, InputStream content) throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    private static class Pending {
+        private final String path;
+        private final String hash;
+        private final long size;
+        private final Future<byte[]> content; // null for a file which is streamed when its turn comes
+
+        private Pending(String path, String hash, long size, Future<byte[]> content) {
+            this.path = path;
+            this.hash = hash;
+            this.size = size;
+            this.content = content;
+        }
+    }
+
+    private final MyGitObjectStore objects;
+
+    public MyGitArchive(@NotNull MyGitObjectStore objects) {
+        this.objects = objects;
+    }
+
+    public static boolean isFormat(@NotNull String format) {
+        return format.equals(TAR) || format.equals(ZIP);
+    }
+
+    /*
+     * Writes files, <path relative to the root, object hash>, into out, which is left open.
+     */
+    public void export(@NotNull SortedMap<String, String> files, @NotNull Date date, @NotNull String format,
+                       @NotNull OutputStream out) throws IOException, GitException {
+        Writer writer;
+        switch (format) {
+            case TAR:
+                writer = new TarWriter(out, date);
+                break;
+            case ZIP:
+                writer = new ZipWriter(out, date);
+                break;
+            default:
+                throw new GitException("Unknown archive format " + format);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(PREFETCH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "archive-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            Iterator<Map.Entry<String, String>> iterator = files.entrySet().iterator();
+            Deque<Pending> pending = new ArrayDeque<>();
+            long prefetchedBytes = 0;
+            while (true) {
+                while (iterator.hasNext() && pending.size() < PREFETCH_FILES && prefetchedBytes < PREFETCH_BYTES) {
+                    Map.Entry<String, String> file = iterator.next();
+                    String hash = file.getValue();
+                    long size = objects.size(hash);
+                    Future<byte[]> content = null;
+                    if (size <= PREFETCH_MAX_FILE_SIZE) {
+                        content = pool.submit(() -> readObject(hash));
+                        prefetchedBytes += size;
+                    }
+                    pending.add(new Pending(file.getKey(), hash, size, content));
+                }
+                Pending next = pending.poll();
+                if (next == null) {
+                    break;
+                }
+                if (next.content == null) {
+                    try (InputStream in = objects.newInputStream(next.hash)) {
+                        writer.putFile(next.path, next.size, in);
+                    }
+                } else {
+                    byte[] content = getPrefetched(next);
+                    prefetchedBytes -= next.size;
+                    writer.putFile(next.path, content.length, new ByteArrayInputStream(content));
+                }
+            }
+            writer.finish();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private byte[] readObject(String hash) throws IOException {
+        try (InputStream in = objects.newInputStream(hash)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] getPrefetched(Pending pending) throws IOException {
+        try {
+            return pending.content.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + pending.path);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Can't read " + pending.path, e.getCause());
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[MyGitHashFunction.BUFFER_SIZE];
+        long copied = 0;
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
+
+    /*
+     * POSIX ustar. Names longer than 100 bytes and files of 8 GiB and more get a pax extended header.
+     */
+    private static class TarWriter implements Writer {
+        private static final int BLOCK_SIZE = 512;
+        private static final long MAX_OCTAL_SIZE = 077777777777L;
+
+        private final OutputStream out;
+        private final long mtime;
+
+        private TarWriter(OutputStream out, Date date) {
+            this.out = new BufferedOutputStream(out, MyGitHashFunction.BUFFER_SIZE);
+            this.mtime = date.getTime() / 1000;
+        }
+
+        @Override
+        public void putFile(String path, long size, InputStream content) throws IOException {
+            byte[] name = path.getBytes(StandardCharsets.UTF_8);
+            StringBuilder pax = new StringBuilder();
+            if (name.length > 100) {
+                pax.append(paxRecord("path", path));
+            }
+            if (size > MAX_OCTAL_SIZE) {
+                pax.append(paxRecord("size", Long.toString(size)));
+            }
+            if (pax.length() > 0) {
+                byte[] records = pax.toString().getBytes(StandardCharsets.UTF_8);
+                writeHeader("PaxHeaders/" + truncate(path), records.length, (byte) 'x');
+                out.write(records);
+                pad(records.length);
+            }
+            writeHeader(name.length > 100 ? truncate(path) : path, size > MAX_OCTAL_SIZE ? 0 : size, (byte) '0');
+            long written = copy(content, out);
+            if (written != size) {
+                throw new IOException("Size of " + path + " changed while it was archived");
+            }
+            pad(size);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.write(new byte[2 * BLOCK_SIZE]);
+            out.flush();
+        }
+
+        private void writeHeader(String name, long size, byte type) throws IOException {
+            byte[] header = new byte[BLOCK_SIZE];
+            byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+            putOctal(header, 100, 8, 0644);
+            putOctal(header, 108, 8, 0);
+            putOctal(header, 116, 8, 0);
+            putOctal(header, 124, 12, size);
+            putOctal(header, 136, 12, mtime);
+            Arrays.fill(header, 148, 156, (byte) ' ');
+            header[156] = type;
+            System.arraycopy(("ustar\0" + "00").getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+            int checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xff;
+            }
+            // Six digits, a zero byte and the space which was already counted
+            putOctal(header, 148, 7, checksum);
+            header[154] = 0;
+            out.write(header);
+        }
+
+        // Digits fill all but the last byte of the field, which stays zero
+        private static void putOctal(byte[] header, int offset, int length, long value) {
+            String digits = Long.toOctalString(value);
+            for (int i = 0; i < length - 1; ++i) {
+                int digit = digits.length() - (length - 1) + i;
+                header[offset + i] = (byte) (digit < 0 ? '0' : digits.charAt(digit));
+            }
+        }
+
+        private void pad(long size) throws IOException {
+            int remainder = (int) (size % BLOCK_SIZE);
+            if (remainder != 0) {
+                out.write(new byte[BLOCK_SIZE - remainder]);
+            }
+        }
+
+        // "<length> <key>=<value>\n", the length counts its own digits
+        private static String paxRecord(String key, String value) {
+            int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+            int total = length + Integer.toString(length).length();
+            if (Integer.toString(total).length() > Integer.toString(length).length()) {
+                total++;
+            }
+            return total + " " + key + "=" + value + "\n";
+        }
+
+        private static String truncate(String path) {
+            byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+            return bytes.length <= 100 ? path : new String(bytes, bytes.length - 100, 100, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static class ZipWriter implements Writer {
+        private final ZipOutputStream out;
+        private final long time;
+
+        private ZipWriter(OutputStream out, Date date) {
+            this.out = new ZipOutputStream(new BufferedOutputStream(out, MyGitHashFunction.BUFFER_SIZE));
+            this.time = date.getTime();
+        }
+
+        @Override
+        public void putFile(String path, long size, InputStream content) throws IOException {
+            ZipEntry entry = new ZipEntry(path);
+            entry.setTime(time);
+            out.putNextEntry(entry);
+            if (copy(content, out) != size) {
+                throw new IOException("Size of " + path + " changed while it was archived");
+            }
+            out.closeEntry();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            out.finish();
+            out.flush();
+        }
+    }
+}
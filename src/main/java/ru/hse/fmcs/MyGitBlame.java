@@ -0,0 +1,145 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Line attribution of a file: for every line the commit which introduced it.
+ *
+ * Only versions of the file are compared, not every commit of the history. The attribution of a version
+ * depends only on the history before the commit which introduced it, and commits never change, so it is
+ * cached by that commit and the blob hash in myGit/blame. Blaming after a new commit loads the cached
+ * attribution of the previous version and compares one pair of versions.
+ */
+public class MyGitBlame {
+
+    // A version of the file: its blob and the commit which introduced it
+    public static class Version {
+        private final String commit;
+        private final String hash;
+
+        public Version(@NotNull String commit, @NotNull String hash) {
+            this.commit = commit;
+            this.hash = hash;
+        }
+
+        public @NotNull String getCommit() {
+            return commit;
+        }
+
+        public @NotNull String getHash() {
+            return hash;
+        }
+    }
+
+    private final MyGitObjectStore objects;
+    private final MyGitCache cache;
+
+    public MyGitBlame(@NotNull MyGitObjectStore objects, @NotNull Path cacheDir) {
+        this.objects = objects;
+        this.cache = new MyGitCache(cacheDir);
+    }
+
+    public boolean isCached(@NotNull Version version) {
+        return cache.contains(getCacheKey(version));
+    }
+
+    // Attributions of versions whose commits are gone, returns how many there were
+    public int deleteUnusedEntries(@NotNull Set<String> commits) throws IOException {
+        return cache.deleteIf(key -> !commits.contains(key.substring(0, Math.max(key.indexOf('-'), 0))));
+    }
+
+    /*
+     * Commits of the lines of the last version. Versions go from the oldest, the first one is cached
+     * or was created by its commit, each next one changes the previous.
+     */
+    public @NotNull String[] blame(@NotNull List<Version> versions) throws GitException {
+        Version first = versions.get(0);
+        String[] lines = readCache(first);
+        if (lines == null) {
+            lines = attribute(null, null, first);
+            writeCache(first, lines);
+        }
+        for (int i = 1; i < versions.size(); ++i) {
+            lines = attribute(versions.get(i - 1), lines, versions.get(i));
+            writeCache(versions.get(i), lines);
+        }
+        return lines;
+    }
+
+    // Lines kept from the previous version keep their commits, the rest belong to the commit of the version
+    private String[] attribute(Version previous, String[] previousLines, Version version) throws GitException {
+        MyGitDiff.Changes changes;
+        try {
+            changes = MyGitDiff.compare(previous == null ? null : () -> objects.newInputStream(previous.hash),
+                    () -> objects.newInputStream(version.hash));
+        } catch (IOException e) {
+            throw new GitException("Can't read file", e);
+        }
+        if (changes == null) {
+            throw new GitException("Can't blame a binary file");
+        }
+        String[] lines = new String[changes.getNewCount()];
+        int i = 0;
+        for (int j = 0; j < lines.length; ++j) {
+            while (i < changes.getOldCount() && changes.isRemoved(i)) {
+                i++;
+            }
+            if (changes.isAdded(j)) {
+                lines[j] = version.commit;
+            } else {
+                lines[j] = previousLines[i++];
+            }
+        }
+        return lines;
+    }
+
+    private static String getCacheKey(Version version) {
+        return version.commit + "-" + version.hash;
+    }
+
+    // Runs of lines of one commit: the number of commits and their hashes, then runs of a commit index and a length
+    private String[] readCache(Version version) {
+        return cache.read(getCacheKey(version), in -> {
+            String[] commits = new String[in.readInt()];
+            for (int i = 0; i < commits.length; ++i) {
+                commits[i] = in.readUTF();
+            }
+            String[] lines = new String[in.readInt()];
+            int line = 0;
+            while (line < lines.length) {
+                String commit = commits[in.readInt()];
+                int length = in.readInt();
+                Arrays.fill(lines, line, line + length, commit);
+                line += length;
+            }
+            return lines;
+        });
+    }
+
+    private void writeCache(Version version, String[] lines) {
+        Map<String, Integer> commits = new LinkedHashMap<>();
+        for (String commit : lines) {
+            commits.putIfAbsent(commit, commits.size());
+        }
+        cache.write(getCacheKey(version), out -> {
+            out.writeInt(commits.size());
+            for (String commit : commits.keySet()) {
+                out.writeUTF(commit);
+            }
+            out.writeInt(lines.length);
+            for (int start = 0; start < lines.length; ) {
+                int end = start;
+                while (end < lines.length && lines[end].equals(lines[start])) {
+                    end++;
+                }
+                out.writeInt(commits.get(lines[start]));
+                out.writeInt(end - start);
+                start = end;
+            }
+        });
+    }
+}
@@ -0,0 +1,323 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Bundle: history moved between repositories as one sequential file.
+ *
+ * Header: magic, version, hash function, prerequisite commits (the receiver must already have them)
+ * and branches with their heads. Then entries, each a type, a hash, a length and the content:
+ * all objects first and then commits, parents before children, so a reader which stops halfway
+ * never leaves a commit whose files are missing. The trailer indexes entries by offset,
+ * it ends with its own offset and the magic so it can be found from the end of the file.
+ */
+public class MyGitBundle {
+    public static final byte OBJECT = 1;
+    public static final byte COMMIT = 2;
+    private static final int MAGIC = 0x4d474244; // "MGBD"
+    private static final int VERSION = 1;
+    private static final byte END = 0;
+
+    public static class Entry {
+        private final byte type;
+        private final String hash;
+        private final long length;
+        private final long offset;
+
+        private Entry(byte type, String hash, long length, long offset) {
+            this.type = type;
+            this.hash = hash;
+            this.length = length;
+            this.offset = offset;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public @NotNull String getHash() {
+            return hash;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    public interface Content {
+        void writeTo(WritableByteChannel out) throws IOException, GitException;
+    }
+
+    /*
+     * Writes the bundle into a temporary file next to the target, it appears under its name on finish.
+     * A writer closed without finish leaves nothing behind.
+     */
+    public static class Writer implements Closeable {
+        private final Path path;
+        private final Path temp;
+        private final CountingOutputStream counter;
+        private final DataOutputStream out;
+        private final List<Entry> entries = new ArrayList<>();
+
+        public Writer(@NotNull Path path, @NotNull String hashFunction, @NotNull Collection<String> prerequisites,
+                      @NotNull Map<String, String> branches) throws IOException {
+            this.path = path.toAbsolutePath();
+            temp = MyGitFiles.createTempFile(this.path.getParent(), MyGitFiles.TEMP_PREFIX, ".bundle");
+            counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+            out = new DataOutputStream(counter);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(hashFunction);
+            out.writeInt(prerequisites.size());
+            for (String hash : prerequisites) {
+                out.writeUTF(hash);
+            }
+            out.writeInt(branches.size());
+            for (var branch : branches.entrySet()) {
+                out.writeUTF(branch.getKey());
+                out.writeUTF(branch.getValue());
+            }
+        }
+
+        public void add(byte type, @NotNull String hash, long length, @NotNull Content content) throws IOException, GitException {
+            Entry entry = new Entry(type, hash, length, counter.count);
+            out.writeByte(type);
+            out.writeUTF(hash);
+            out.writeLong(length);
+            long start = counter.count;
+            content.writeTo(Channels.newChannel(out));
+            if (counter.count - start != length) {
+                throw new GitException("Object " + hash + " changed while it was bundled");
+            }
+            entries.add(entry);
+        }
+
+        public void finish() throws IOException {
+            out.writeByte(END);
+            long trailerOffset = counter.count;
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                out.writeByte(entry.type);
+                out.writeUTF(entry.hash);
+                out.writeLong(entry.offset);
+            }
+            out.writeLong(trailerOffset);
+            out.writeInt(MAGIC);
+            out.close();
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /*
+     * Reads entries one after another. The content of an entry is read through getContent
+     * before the next one is requested, the rest of it is skipped otherwise.
+     */
+    public static class Reader implements Closeable {
+        private final CountingInputStream counter;
+        private final DataInputStream in;
+        private final String hashFunction;
+        private final List<String> prerequisites = new ArrayList<>();
+        private final Map<String, String> branches = new LinkedHashMap<>();
+        private final List<Entry> entries = new ArrayList<>();
+        private BoundedInputStream content;
+
+        public Reader(@NotNull Path path) throws IOException, GitException {
+            counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(path)));
+            in = new DataInputStream(counter);
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new GitException(path + " is not a bundle");
+            }
+            if (in.readInt() != VERSION) {
+                in.close();
+                throw new GitException("Unsupported bundle version");
+            }
+            hashFunction = in.readUTF();
+            int count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                prerequisites.add(in.readUTF());
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; ++i) {
+                branches.put(in.readUTF(), in.readUTF());
+            }
+        }
+
+        public @NotNull String getHashFunction() {
+            return hashFunction;
+        }
+
+        public @NotNull List<String> getPrerequisites() {
+            return prerequisites;
+        }
+
+        public @NotNull Map<String, String> getBranches() {
+            return branches;
+        }
+
+        /*
+         * The next entry, or null after the last one once the trailer was checked against the entries read.
+         */
+        public Entry next() throws IOException, GitException {
+            if (content != null) {
+                content.skipRest();
+                content = null;
+            }
+            long offset = counter.count;
+            byte type = in.readByte();
+            if (type == END) {
+                checkTrailer();
+                return null;
+            }
+            Entry entry = new Entry(type, in.readUTF(), in.readLong(), offset);
+            entries.add(entry);
+            content = new BoundedInputStream(in, entry.length);
+            return entry;
+        }
+
+        public @NotNull InputStream getContent() {
+            return content;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void checkTrailer() throws IOException, GitException {
+            long trailerOffset = counter.count;
+            int count = in.readInt();
+            if (count != entries.size()) {
+                throw new GitException("Corrupted bundle: the index lists " + count + " entries, " + entries.size() + " found");
+            }
+            for (Entry entry : entries) {
+                byte type = in.readByte();
+                String hash = in.readUTF();
+                long offset = in.readLong();
+                if (type != entry.type || !hash.equals(entry.hash) || offset != entry.offset) {
+                    throw new GitException("Corrupted bundle: the index doesn't match entry " + entry.hash);
+                }
+            }
+            if (in.readLong() != trailerOffset || in.readInt() != MAGIC) {
+                throw new GitException("Corrupted bundle: wrong trailer");
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    // Content of one entry
+    private static class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long left;
+
+        private BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.left = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (left == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Bundle ended inside an entry");
+            }
+            left--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left == 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, left));
+            if (read < 0) {
+                throw new EOFException("Bundle ended inside an entry");
+            }
+            left -= read;
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, left));
+            left -= skipped;
+            return skipped;
+        }
+
+        private void skipRest() throws IOException {
+            while (left > 0) {
+                if (skip(left) == 0 && read() < 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.function.Predicate;
+
+import static ru.hse.fmcs.MyGitFiles.TEMP_PREFIX;
+
+/*
+ * A directory of data derived from objects and commits, one file per key.
+ * Every entry can be computed again, so the cache only saves time: a missing or damaged entry reads
+ * as absent and a failed write is dropped. Entries are written under a temporary name and renamed
+ * into place, a reader sees a whole entry or none, and concurrent writers of a key write the same bytes.
+ * Entries derived from deleted objects or commits are deleted with deleteIf.
+ */
+public class MyGitCache {
+    public interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    public interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private final Path dir;
+
+    public MyGitCache(@NotNull Path dir) {
+        this.dir = dir;
+    }
+
+    public boolean contains(@NotNull String key) {
+        return Files.exists(dir.resolve(key));
+    }
+
+    // Null when there is no whole entry for the key
+    public <T> T read(@NotNull String key, @NotNull Reader<T> reader) {
+        Path path = dir.resolve(key);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            return reader.read(in);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    public void write(@NotNull String key, @NotNull Writer writer) {
+        Path temp = null;
+        try {
+            Files.createDirectories(dir);
+            temp = MyGitFiles.createTempFile(dir, TEMP_PREFIX, null);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                writer.write(out);
+            }
+            Files.move(temp, dir.resolve(key), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // Readers skip temporary files, it only takes space
+                }
+            }
+        }
+    }
+
+    // Deletes the entries whose keys match and returns how many there were
+    public int deleteIf(@NotNull Predicate<String> stale) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String key = path.getFileName().toString();
+                if (!key.startsWith(TEMP_PREFIX) && stale.test(key)) {
+                    Files.deleteIfExists(path);
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+}
@@ -0,0 +1,100 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/*
+ * Content-defined chunking (FastCDC with normalized chunking).
+ * Cut points depend only on the bytes near them, so an edit changes only the chunks around it.
+ */
+public class MyGitChunker {
+    public static final long DEFAULT_THRESHOLD = 16L << 20;
+    public static final int DEFAULT_TARGET_SIZE = 1 << 20;
+    // The largest chunk, four times the target, has to fit into one mapped window of the file
+    public static final int MAX_TARGET_SIZE = (int) (MyGitHashFunction.MAPPED_WINDOW / 4);
+
+    // The table has to be the same in every run, otherwise chunks of equal content would differ
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6d79676974L);
+        for (int i = 0; i < GEAR.length; ++i) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final long threshold;
+    private final int minSize;
+    private final int targetSize;
+    private final int maxSize;
+    private final long smallMask;
+    private final long largeMask;
+
+    public MyGitChunker(long threshold, int targetSize) {
+        if (targetSize < 64) {
+            throw new IllegalArgumentException("Chunk size is too small: " + targetSize);
+        }
+        if (targetSize > MAX_TARGET_SIZE) {
+            throw new IllegalArgumentException("Chunk size is too large: " + targetSize + ", at most " + MAX_TARGET_SIZE);
+        }
+        this.threshold = threshold;
+        this.targetSize = targetSize;
+        minSize = targetSize / 4;
+        maxSize = targetSize * 4;
+        int bits = 31 - Integer.numberOfLeadingZeros(targetSize);
+        // Harder to cut before the target size and easier after it, which narrows the size distribution
+        smallMask = topBits(bits + 1);
+        largeMask = topBits(bits - 1);
+    }
+
+    public long getThreshold() {
+        return threshold;
+    }
+
+    public int getTargetSize() {
+        return targetSize;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public boolean shouldChunk(long size) {
+        return size > threshold;
+    }
+
+    /*
+     * Returns the length of the chunk which starts at the position of the buffer and lies before its limit.
+     * If the buffer ends before a cut point, the whole remainder is returned.
+     */
+    public int nextChunkLength(@NotNull ByteBuffer data) {
+        int start = data.position();
+        int available = data.limit() - start;
+        if (available <= minSize) {
+            return available;
+        }
+        int normal = Math.min(targetSize, available);
+        int end = Math.min(maxSize, available);
+        long hash = 0;
+        int i = minSize;
+        for (; i < normal; ++i) {
+            hash = (hash << 1) + GEAR[data.get(start + i) & 0xff];
+            if ((hash & smallMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; ++i) {
+            hash = (hash << 1) + GEAR[data.get(start + i) & 0xff];
+            if ((hash & largeMask) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+
+    private static long topBits(int count) {
+        return count <= 0 ? 0 : -1L << (Long.SIZE - count);
+    }
+}
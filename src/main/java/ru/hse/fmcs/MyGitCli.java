@@ -16,10 +16,10 @@ public class MyGitCli implements GitCli{
     public void runCommand(@NotNull String command, @NotNull List<@NotNull String> arguments) throws GitException {
         switch (command) {
             case GitConstants.INIT:
-                repository.init();
+                repository.init(arguments);
                 break;
             case GitConstants.STATUS:
-                repository.status();
+                repository.status(arguments);
                 break;
             case GitConstants.ADD:
                 repository.add(arguments);
@@ -31,7 +31,7 @@ public class MyGitCli implements GitCli{
                 repository.commit(arguments.get(0));
                 break;
             case GitConstants.LOG:
-                repository.log(arguments.isEmpty() ? null : arguments.get(0));
+                repository.log(arguments);
                 break;
             case GitConstants.RESET:
                 repository.reset(arguments.get(0));
@@ -48,6 +48,54 @@ public class MyGitCli implements GitCli{
             case GitConstants.BRANCH_REMOVE:
                 repository.branchRemove(arguments.get(0));
                 break;
+            case GitConstants.SPARSE_CHECKOUT:
+                repository.sparseCheckout(arguments);
+                break;
+            case GitConstants.WORKTREE:
+                repository.worktree(arguments);
+                break;
+            case GitConstants.CLONE:
+                repository.cloneRepository(arguments);
+                break;
+            case GitConstants.BUNDLE:
+                repository.bundle(arguments);
+                break;
+            case GitConstants.PUSH:
+                repository.push(arguments);
+                break;
+            case GitConstants.PULL:
+                repository.pull(arguments);
+                break;
+            case GitConstants.ARCHIVE:
+                repository.archive(arguments);
+                break;
+            case GitConstants.FSCK:
+                repository.fsck(arguments);
+                break;
+            case GitConstants.GC:
+                repository.gc(arguments);
+                break;
+            case GitConstants.DIFF:
+                repository.diff(arguments);
+                break;
+            case GitConstants.BLAME:
+                repository.blame(arguments);
+                break;
+            case GitConstants.GREP:
+                repository.grep(arguments);
+                break;
+            case GitConstants.FAST_IMPORT:
+                repository.fastImport(arguments);
+                break;
+            case GitConstants.STATS:
+                repository.stats(arguments);
+                break;
+            case GitConstants.DEEPEN:
+                repository.deepen(arguments);
+                break;
+            case GitConstants.SHOW:
+                repository.show(arguments);
+                break;
         }
     }
 
@@ -1,6 +1,10 @@
 package ru.hse.fmcs;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
@@ -19,8 +23,7 @@ public class MyGitCommit {
         author = System.getProperty("user.name");
         this.message = message;
         this.branch = branch;
-        Random random = new Random();
-        hash = random.ints('0', 'z' + 1).filter(x -> x <= '9' || ('A' <= x && x <= 'Z') || 'a' <= x).limit(40).collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString();
+        hash = newHash();
         date = new Date();
         files = new HashMap<>();
         if (parent != null) {
@@ -36,6 +39,37 @@ public class MyGitCommit {
         }
     }
 
+    /*
+     * A commit made elsewhere, with its own author and date. Its files are those of the parent
+     * with the changed ones written over and the deleted ones removed.
+     */
+    public MyGitCommit(String message, String author, Date date, MyGitCommit parent, Map<Path, String> changed,
+                       Collection<Path> deleted, String branch) {
+        this.author = author;
+        this.message = message;
+        this.branch = branch;
+        hash = newHash();
+        this.date = date;
+        files = parent == null ? new HashMap<>() : new HashMap<>(parent.getFiles());
+        this.parentHash = parent == null ? null : parent.getHash();
+        files.putAll(changed);
+        files.keySet().removeAll(deleted);
+    }
+
+    @JsonCreator
+    private MyGitCommit(@JsonProperty("author") String author, @JsonProperty("message") String message,
+                        @JsonProperty("branch") String branch, @JsonProperty("hash") String hash,
+                        @JsonProperty("parentHash") String parentHash, @JsonProperty("date") Date date,
+                        @JsonProperty("files") Map<Path, String> files) {
+        this.author = author;
+        this.message = message;
+        this.branch = branch;
+        this.hash = hash;
+        this.parentHash = parentHash;
+        this.date = date;
+        this.files = files == null ? new HashMap<>() : new HashMap<>(files);
+    }
+
     public String getAuthor() {
         return author;
     }
@@ -71,4 +105,9 @@ public class MyGitCommit {
     public boolean containsFile(Path pathToFile, String hash) {
         return files.containsKey(pathToFile) && files.get(pathToFile).equals(hash);
     }
+
+    private static String newHash() {
+        Random random = new Random();
+        return random.ints('0', 'z' + 1).filter(x -> x <= '9' || ('A' <= x && x <= 'Z') || 'a' <= x).limit(40).collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString();
+    }
 }
@@ -0,0 +1,147 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/*
+ * A commit made from contents given by the caller instead of the working directory.
+ * Paths are relative to the root of the repository with '/' between names. Contents go straight
+ * into the object store when the commit is made, the working directory, the index and HEAD are not touched.
+ *
+ *     String hash = repository.newCommit("data")
+ *             .put("users/1.json", buffer)
+ *             .delete("users/2.json")
+ *             .setMessage("Update users")
+ *             .commit();
+ *
+ * The commit goes on top of the branch, or of the given parent, which the branch must still be at then.
+ * A new branch starts from the initial commit unless a parent is given.
+ */
+public class MyGitCommitBuilder {
+    // Content of a file, a buffer or a stream of the given length
+    static class Content {
+        private final ByteBuffer buffer;
+        private final InputStream stream;
+        private final long length;
+
+        private Content(ByteBuffer buffer, InputStream stream, long length) {
+            this.buffer = buffer;
+            this.stream = stream;
+            this.length = length;
+        }
+
+        ByteBuffer getBuffer() {
+            return buffer;
+        }
+
+        InputStream getStream() {
+            return stream;
+        }
+
+        long getLength() {
+            return length;
+        }
+    }
+
+    private final MyGitRepository repository;
+    private final String branch;
+    private final Map<String, Content> files = new LinkedHashMap<>();
+    private final Set<String> deleted = new LinkedHashSet<>();
+    private String parent;
+    private String message = "";
+    private String author = System.getProperty("user.name");
+    private Date date;
+
+    MyGitCommitBuilder(@NotNull MyGitRepository repository, @NotNull String branch) {
+        this.repository = repository;
+        this.branch = branch;
+    }
+
+    // Bytes between the position and the limit of the buffer, which is not changed
+    public @NotNull MyGitCommitBuilder put(@NotNull String path, @NotNull ByteBuffer content) {
+        files.put(path, new Content(content, null, content.remaining()));
+        deleted.remove(path);
+        return this;
+    }
+
+    // The stream is read up to the length when the commit is made and closed then
+    public @NotNull MyGitCommitBuilder put(@NotNull String path, @NotNull InputStream content, long length) {
+        files.put(path, new Content(null, content, length));
+        deleted.remove(path);
+        return this;
+    }
+
+    public @NotNull MyGitCommitBuilder putAll(@NotNull Map<String, ByteBuffer> contents) {
+        for (var entry : contents.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+        return this;
+    }
+
+    // Deleting a file the parent doesn't have changes nothing
+    public @NotNull MyGitCommitBuilder delete(@NotNull String path) {
+        files.remove(path);
+        deleted.add(path);
+        return this;
+    }
+
+    // Revision the commit goes on top of, the tip of the branch by default
+    public @NotNull MyGitCommitBuilder setParent(String revision) {
+        parent = revision;
+        return this;
+    }
+
+    public @NotNull MyGitCommitBuilder setMessage(@NotNull String message) {
+        this.message = message;
+        return this;
+    }
+
+    public @NotNull MyGitCommitBuilder setAuthor(@NotNull String author) {
+        this.author = author;
+        return this;
+    }
+
+    // The time of the commit by default
+    public @NotNull MyGitCommitBuilder setDate(Date date) {
+        this.date = date;
+        return this;
+    }
+
+    /*
+     * Writes the contents and the commit and moves the branch to it. Returns the hash of the commit.
+     */
+    public @NotNull String commit() throws GitException {
+        return repository.commit(this);
+    }
+
+    @NotNull String getBranch() {
+        return branch;
+    }
+
+    @NotNull Map<String, Content> getFiles() {
+        return files;
+    }
+
+    @NotNull Set<String> getDeleted() {
+        return deleted;
+    }
+
+    String getParent() {
+        return parent;
+    }
+
+    @NotNull String getMessage() {
+        return message;
+    }
+
+    String getAuthor() {
+        return author;
+    }
+
+    Date getDate() {
+        return date;
+    }
+}
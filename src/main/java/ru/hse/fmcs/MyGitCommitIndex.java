@@ -0,0 +1,252 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Sorted index of commit hashes which resolves unique prefixes without reading commits.
+ *
+ * myGit/commit-index: magic, count, a 256-entry fan-out table (number of hashes whose first
+ * byte is at most i) and then the sorted hashes, HASH_LENGTH ascii bytes each.
+ * myGit/commit-index.journal: "+hash" and "-hash" lines written since the index was last rebuilt,
+ * it is merged into the index once it grows over JOURNAL_LIMIT lines.
+ */
+public class MyGitCommitIndex {
+    public static final int HASH_LENGTH = 40;
+    public static final int MIN_PREFIX_LENGTH = 4;
+    private static final int MAGIC = 0x4d474349; // "MGCI"
+    private static final int FANOUT_SIZE = 256;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + FANOUT_SIZE * Integer.BYTES;
+    private static final int JOURNAL_LIMIT = 4096;
+    private static final int MAX_REPORTED_CANDIDATES = 5;
+
+    private final Path indexPath;
+    private final Path journalPath;
+    private final NavigableSet<String> added = new TreeSet<>();
+    private final Set<String> removed = new HashSet<>();
+    private int journalSize = 0;
+
+    public MyGitCommitIndex(@NotNull Path indexPath) {
+        this.indexPath = indexPath;
+        this.journalPath = Path.of(indexPath + ".journal");
+    }
+
+    /*
+     * Reads the journal, or builds the index from scratch if it doesn't exist yet.
+     */
+    public void open(@NotNull Collection<String> allHashes) throws GitException {
+        added.clear();
+        removed.clear();
+        journalSize = 0;
+        try {
+            if (!Files.exists(indexPath)) {
+                rebuild(new TreeSet<>(allHashes));
+                return;
+            }
+            if (Files.exists(journalPath)) {
+                for (String line : Files.readAllLines(journalPath, StandardCharsets.US_ASCII)) {
+                    if (line.length() > 1) {
+                        applyJournalLine(line);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't read commit index", e);
+        }
+    }
+
+    // False for a repository written before the index existed, open builds it then
+    public boolean exists() {
+        return Files.exists(indexPath);
+    }
+
+    public void add(@NotNull String hash) throws GitException {
+        appendJournal("+" + hash);
+    }
+
+    // One write of the journal for many commits
+    public void addAll(@NotNull Collection<String> hashes) throws GitException {
+        if (hashes.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (String hash : hashes) {
+            lines.append('+').append(hash).append('\n');
+        }
+        try {
+            Files.writeString(journalPath, lines, StandardCharsets.US_ASCII,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            for (String hash : hashes) {
+                applyJournalLine("+" + hash);
+            }
+            if (journalSize > JOURNAL_LIMIT) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't update commit index", e);
+        }
+    }
+
+    public void remove(@NotNull String hash) throws GitException {
+        appendJournal("-" + hash);
+    }
+
+    /*
+     * Returns the only commit hash which starts with the prefix, or null if there is none.
+     */
+    public String resolve(@NotNull String prefix) throws GitException {
+        if (prefix.length() < MIN_PREFIX_LENGTH || prefix.length() > HASH_LENGTH) {
+            return null;
+        }
+        SortedSet<String> candidates = new TreeSet<>();
+        try {
+            findInIndex(prefix, candidates);
+        } catch (IOException e) {
+            throw new GitException("Can't read commit index", e);
+        }
+        candidates.addAll(added.subSet(prefix, true, prefix + Character.MAX_VALUE, false));
+        if (candidates.size() > 1) {
+            List<String> reported = new ArrayList<>(candidates).subList(0, Math.min(candidates.size(), MAX_REPORTED_CANDIDATES));
+            throw new GitException(String.format("Ambiguous revision prefix %s, candidates: %s%s", prefix,
+                    String.join(", ", reported), candidates.size() > reported.size() ? ", ..." : ""));
+        }
+        return candidates.isEmpty() ? null : candidates.first();
+    }
+
+    // Hashes removed through the journal are skipped before the scan stops at enough candidates
+    private void findInIndex(String prefix, Set<String> result) throws IOException {
+        if (!Files.exists(indexPath)) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("Corrupted commit index");
+            }
+            int first = prefix.charAt(0) & 0xff;
+            int low = first == 0 ? 0 : fanout(buffer, first - 1);
+            int high = fanout(buffer, first);
+            byte[] key = prefix.getBytes(StandardCharsets.US_ASCII);
+            // Binary search of the first hash which is not less than the prefix
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (compare(buffer, middle, key) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            int count = buffer.getInt(Integer.BYTES);
+            for (int i = low; i < count && startsWith(buffer, i, key) && result.size() <= MAX_REPORTED_CANDIDATES; ++i) {
+                String hash = readHash(buffer, i);
+                if (!removed.contains(hash)) {
+                    result.add(hash);
+                }
+            }
+        }
+    }
+
+    private void appendJournal(String line) throws GitException {
+        try {
+            Files.writeString(journalPath, line + "\n", StandardCharsets.US_ASCII,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            applyJournalLine(line);
+            if (journalSize > JOURNAL_LIMIT) {
+                compact();
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't update commit index", e);
+        }
+    }
+
+    private void applyJournalLine(String line) {
+        String hash = line.substring(1);
+        if (line.charAt(0) == '+') {
+            added.add(hash);
+            removed.remove(hash);
+        } else {
+            added.remove(hash);
+            removed.add(hash);
+        }
+        journalSize++;
+    }
+
+    private void compact() throws IOException {
+        NavigableSet<String> hashes = new TreeSet<>(added);
+        try (FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int count = buffer.getInt(Integer.BYTES);
+            for (int i = 0; i < count; ++i) {
+                String hash = readHash(buffer, i);
+                if (!removed.contains(hash)) {
+                    hashes.add(hash);
+                }
+            }
+        }
+        rebuild(hashes);
+    }
+
+    private void rebuild(NavigableSet<String> hashes) throws IOException {
+        int[] fanout = new int[FANOUT_SIZE];
+        for (String hash : hashes) {
+            fanout[hash.charAt(0) & 0xff]++;
+        }
+        for (int i = 1; i < FANOUT_SIZE; ++i) {
+            fanout[i] += fanout[i - 1];
+        }
+        Path temp = MyGitFiles.createTempFile(indexPath.getParent(), "commit-index", null);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(hashes.size());
+            for (int value : fanout) {
+                out.writeInt(value);
+            }
+            for (String hash : hashes) {
+                out.write(hash.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        Files.move(temp, indexPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(journalPath);
+        added.clear();
+        removed.clear();
+        journalSize = 0;
+    }
+
+    private static int fanout(ByteBuffer buffer, int i) {
+        return buffer.getInt(2 * Integer.BYTES + i * Integer.BYTES);
+    }
+
+    private static int offset(int i) {
+        return HEADER_SIZE + i * HASH_LENGTH;
+    }
+
+    private static int compare(ByteBuffer buffer, int i, byte[] key) {
+        int offset = offset(i);
+        for (int j = 0; j < key.length; ++j) {
+            int diff = (buffer.get(offset + j) & 0xff) - (key[j] & 0xff);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return 0;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int i, byte[] key) {
+        return compare(buffer, i, key) == 0;
+    }
+
+    private static String readHash(ByteBuffer buffer, int i) {
+        byte[] hash = new byte[HASH_LENGTH];
+        buffer.duplicate().position(offset(i)).get(hash);
+        return new String(hash, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,511 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/*
+ * Unified diff of two versions of a file.
+ *
+ * Neither version is kept in memory: the first pass reads both and keeps a 64-bit hash per line,
+ * lines are compared by these hashes only. Lines which occur in just one of the versions are changes
+ * whatever the rest is, they are marked right away and the linear-space Myers algorithm runs on
+ * the remaining ones. The second pass reads both versions again and prints the hunks in order.
+ * A version with a zero byte among its first bytes is binary and is not compared line by line.
+ */
+public class MyGitDiff {
+    private static final int CONTEXT = 3;
+    private static final int BINARY_CHECK_SIZE = 8000;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    // Hashes of the lines of one version, in blocks so that a long file is never copied to grow
+    private static class Lines {
+        private static final int BLOCK_BITS = 16;
+        private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+        private long[][] blocks = new long[0][];
+        private int count = 0;
+
+        private void add(long hash) {
+            if (count == blocks.length * BLOCK_SIZE) {
+                blocks = Arrays.copyOf(blocks, blocks.length + 1);
+                blocks[blocks.length - 1] = new long[BLOCK_SIZE];
+            }
+            set(count++, hash);
+        }
+
+        private long get(int i) {
+            return blocks[i >>> BLOCK_BITS][i & (BLOCK_SIZE - 1)];
+        }
+
+        private void set(int i, long hash) {
+            blocks[i >>> BLOCK_BITS][i & (BLOCK_SIZE - 1)] = hash;
+        }
+
+        private long[] toSortedArray() {
+            long[] sorted = new long[count];
+            for (int i = 0; i < count; ++i) {
+                sorted[i] = get(i);
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        // Keeps only the lines with the given increasing indices
+        private void retain(int[] indices) {
+            for (int i = 0; i < indices.length; ++i) {
+                set(i, get(indices[i]));
+            }
+            count = indices.length;
+            blocks = Arrays.copyOf(blocks, (count + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        }
+    }
+
+    /*
+     * Line by line difference: lines of the old version which were removed and lines of the new one which were added.
+     * The other lines of the two versions match in order.
+     */
+    public static class Changes {
+        private final int oldCount;
+        private final int newCount;
+        private final BitSet removed;
+        private final BitSet added;
+
+        private Changes(int oldCount, int newCount) {
+            this.oldCount = oldCount;
+            this.newCount = newCount;
+            removed = new BitSet(oldCount);
+            added = new BitSet(newCount);
+        }
+
+        public int getOldCount() {
+            return oldCount;
+        }
+
+        public int getNewCount() {
+            return newCount;
+        }
+
+        public boolean isRemoved(int line) {
+            return removed.get(line);
+        }
+
+        public boolean isAdded(int line) {
+            return added.get(line);
+        }
+    }
+
+    private static class Hunk {
+        private final int oldStart;
+        private int oldEnd;
+        private final int newStart;
+        private int newEnd;
+
+        private Hunk(int oldStart, int oldEnd, int newStart, int newEnd) {
+            this.oldStart = oldStart;
+            this.oldEnd = oldEnd;
+            this.newStart = newStart;
+            this.newEnd = newEnd;
+        }
+    }
+
+    private final OutputStream out;
+
+    public MyGitDiff(@NotNull OutputStream out) {
+        this.out = out;
+    }
+
+    /*
+     * Prints the difference of the file at path, oldSource is null for a new file and newSource for a removed one.
+     * Hashes are the object hashes of the versions, printed in the header.
+     */
+    public void diff(@NotNull String path, String oldHash, Source oldSource, String newHash, Source newSource)
+            throws IOException {
+        print("diff --mygit a/" + path + " b/" + path + "\n");
+        if (oldSource == null) {
+            print("new file\n");
+        } else if (newSource == null) {
+            print("deleted file\n");
+        }
+        print("index " + abbreviate(oldHash) + ".." + abbreviate(newHash) + "\n");
+        Changes changes = compare(oldSource, newSource);
+        String oldName = oldSource == null ? "/dev/null" : "a/" + path;
+        String newName = newSource == null ? "/dev/null" : "b/" + path;
+        if (changes == null) {
+            print("Binary files " + oldName + " and " + newName + " differ\n");
+            return;
+        }
+        print("--- " + oldName + "\n");
+        print("+++ " + newName + "\n");
+        BitSet removed = changes.removed;
+        BitSet added = changes.added;
+        List<Hunk> hunks = getHunks(changes.oldCount, changes.newCount, removed, added);
+        try (LineReader oldReader = new LineReader(oldSource);
+             LineReader newReader = new LineReader(newSource)) {
+            for (Hunk hunk : hunks) {
+                print("@@ -" + range(hunk.oldStart, hunk.oldEnd) + " +" + range(hunk.newStart, hunk.newEnd) + " @@\n");
+                oldReader.skipTo(hunk.oldStart);
+                newReader.skipTo(hunk.newStart);
+                int i = hunk.oldStart;
+                int j = hunk.newStart;
+                while (i < hunk.oldEnd || j < hunk.newEnd) {
+                    if (i < hunk.oldEnd && j < hunk.newEnd && !removed.get(i) && !added.get(j)) {
+                        oldReader.copyLine(' ', out);
+                        newReader.skipTo(++j);
+                        i++;
+                        continue;
+                    }
+                    for (; i < hunk.oldEnd && removed.get(i); ++i) {
+                        oldReader.copyLine('-', out);
+                    }
+                    for (; j < hunk.newEnd && added.get(j); ++j) {
+                        newReader.copyLine('+', out);
+                    }
+                }
+            }
+        }
+    }
+
+    private void print(String text) throws IOException {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String abbreviate(String hash) {
+        return hash == null ? "0000000" : hash.substring(0, Math.min(7, hash.length()));
+    }
+
+    // An empty range is named by the line before it
+    private static String range(int start, int end) {
+        if (end - start == 1) {
+            return Integer.toString(start + 1);
+        }
+        return (end == start ? start : start + 1) + "," + (end - start);
+    }
+
+    // Null for a binary version
+    private static Lines readLines(Source source) throws IOException {
+        Lines lines = new Lines();
+        try (InputStream in = source.open()) {
+            byte[] buffer = new byte[MyGitHashFunction.BUFFER_SIZE];
+            long position = 0;
+            long hash = FNV_OFFSET;
+            boolean pending = false;
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                for (int i = 0; i < read; ++i) {
+                    byte b = buffer[i];
+                    if (b == 0 && position + i < BINARY_CHECK_SIZE) {
+                        return null;
+                    }
+                    hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+                    pending = true;
+                    if (b == '\n') {
+                        lines.add(hash);
+                        hash = FNV_OFFSET;
+                        pending = false;
+                    }
+                }
+                position += read;
+            }
+            if (pending) {
+                lines.add(hash);
+            }
+        }
+        return lines;
+    }
+
+    /*
+     * Compares two versions, a null source is an empty file. Null when one of them is binary.
+     */
+    public static Changes compare(Source oldSource, Source newSource) throws IOException {
+        Lines oldLines = oldSource == null ? new Lines() : readLines(oldSource);
+        Lines newLines = newSource == null ? new Lines() : readLines(newSource);
+        if (oldLines == null || newLines == null) {
+            return null;
+        }
+        Changes changes = new Changes(oldLines.count, newLines.count);
+        mark(oldLines, newLines, changes.removed, changes.added);
+        return changes;
+    }
+
+    /*
+     * Marks removed lines of the old version and added lines of the new one. Both versions are left
+     * with their common lines only.
+     */
+    private static void mark(Lines oldLines, Lines newLines, BitSet removed, BitSet added) {
+        int[] oldKept = keepCommon(oldLines, newLines.toSortedArray(), removed);
+        int[] newKept = keepCommon(newLines, oldLines.toSortedArray(), added);
+        oldLines.retain(oldKept);
+        newLines.retain(newKept);
+        BitSet keptRemoved = new BitSet(oldLines.count);
+        BitSet keptAdded = new BitSet(newLines.count);
+        new Myers(oldLines, newLines, keptRemoved, keptAdded).compare(0, oldLines.count, 0, newLines.count);
+        for (int i = keptRemoved.nextSetBit(0); i >= 0; i = keptRemoved.nextSetBit(i + 1)) {
+            removed.set(oldKept[i]);
+        }
+        for (int i = keptAdded.nextSetBit(0); i >= 0; i = keptAdded.nextSetBit(i + 1)) {
+            added.set(newKept[i]);
+        }
+    }
+
+    // Indices of lines which also occur in the other version, the rest are marked as changed
+    private static int[] keepCommon(Lines lines, long[] other, BitSet changed) {
+        int[] kept = new int[lines.count];
+        int count = 0;
+        for (int i = 0; i < lines.count; ++i) {
+            if (Arrays.binarySearch(other, lines.get(i)) >= 0) {
+                kept[count++] = i;
+            } else {
+                changed.set(i);
+            }
+        }
+        return Arrays.copyOf(kept, count);
+    }
+
+    // Changes with the context around them, changes at most two contexts apart share a hunk
+    private static List<Hunk> getHunks(int oldCount, int newCount, BitSet removed, BitSet added) {
+        List<Hunk> hunks = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < oldCount || j < newCount) {
+            if (i < oldCount && j < newCount && !removed.get(i) && !added.get(j)) {
+                i++;
+                j++;
+                continue;
+            }
+            int oldStart = i;
+            int newStart = j;
+            while (i < oldCount && removed.get(i)) {
+                i++;
+            }
+            while (j < newCount && added.get(j)) {
+                j++;
+            }
+            Hunk last = hunks.isEmpty() ? null : hunks.get(hunks.size() - 1);
+            if (last != null && oldStart - last.oldEnd <= CONTEXT) {
+                last.oldEnd = Math.min(i + CONTEXT, oldCount);
+                last.newEnd = Math.min(j + CONTEXT, newCount);
+            } else {
+                int before = Math.min(CONTEXT, Math.min(oldStart, newStart));
+                hunks.add(new Hunk(oldStart - before, Math.min(i + CONTEXT, oldCount),
+                        newStart - before, Math.min(j + CONTEXT, newCount)));
+            }
+        }
+        return hunks;
+    }
+
+    /*
+     * Myers' O(ND) difference with the linear space refinement: the middle snake of the shortest edit
+     * script splits the problem in two, both halves are solved the same way.
+     */
+    private static class Myers {
+        private static final int INITIAL_COST = 1024;
+        private final Lines a;
+        private final Lines b;
+        private final BitSet removed;
+        private final BitSet added;
+        // Furthest x on each diagonal, sized by the number of edits found so far rather than by the lines
+        private int[] forward = new int[0];
+        private int[] backward = new int[0];
+
+        private Myers(Lines a, Lines b, BitSet removed, BitSet added) {
+            this.a = a;
+            this.b = b;
+            this.removed = removed;
+            this.added = added;
+        }
+
+        private void compare(int aStart, int aEnd, int bStart, int bEnd) {
+            while (aStart < aEnd && bStart < bEnd && a.get(aStart) == b.get(bStart)) {
+                aStart++;
+                bStart++;
+            }
+            while (aStart < aEnd && bStart < bEnd && a.get(aEnd - 1) == b.get(bEnd - 1)) {
+                aEnd--;
+                bEnd--;
+            }
+            if (aStart == aEnd) {
+                added.set(bStart, bEnd);
+            } else if (bStart == bEnd) {
+                removed.set(aStart, aEnd);
+            } else {
+                long split = split(aStart, aEnd, bStart, bEnd);
+                int x = (int) (split >>> 32);
+                int y = (int) split;
+                compare(aStart, x, bStart, y);
+                compare(x, aEnd, y, bEnd);
+            }
+        }
+
+        // A point of a shortest edit script strictly inside the rectangle, x in the high half
+        private long split(int aStart, int aEnd, int bStart, int bEnd) {
+            int n = aEnd - aStart;
+            int m = bEnd - bStart;
+            int max = (n + m + 1) / 2;
+            int offset = Math.min(max, INITIAL_COST);
+            reset(offset);
+            int delta = n - m;
+            boolean odd = delta % 2 != 0;
+            int forwardStart = 0;
+            int forwardEnd = 0;
+            int backwardStart = 0;
+            int backwardEnd = 0;
+            for (int d = 0; d < max; ++d) {
+                if (d + 1 > offset) {
+                    offset = grow(offset, Math.min(max, 2 * offset));
+                }
+                int length = 2 * offset + 2;
+                for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                    int index = offset + k;
+                    int x = k == -d || (k != d && forward[index - 1] < forward[index + 1])
+                            ? forward[index + 1] : forward[index - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && a.get(aStart + x) == b.get(bStart + y)) {
+                        x++;
+                        y++;
+                    }
+                    forward[index] = x;
+                    if (x > n) {
+                        forwardEnd += 2;
+                    } else if (y > m) {
+                        forwardStart += 2;
+                    } else if (odd) {
+                        int other = offset + delta - k;
+                        if (other >= 0 && other < length && backward[other] != -1 && x >= n - backward[other]) {
+                            return ((long) (aStart + x) << 32) | (bStart + y);
+                        }
+                    }
+                }
+                for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                    int index = offset + k;
+                    int x = k == -d || (k != d && backward[index - 1] < backward[index + 1])
+                            ? backward[index + 1] : backward[index - 1] + 1;
+                    int y = x - k;
+                    while (x < n && y < m && a.get(aEnd - x - 1) == b.get(bEnd - y - 1)) {
+                        x++;
+                        y++;
+                    }
+                    backward[index] = x;
+                    if (x > n) {
+                        backwardEnd += 2;
+                    } else if (y > m) {
+                        backwardStart += 2;
+                    } else if (!odd) {
+                        int other = offset + delta - k;
+                        if (other >= 0 && other < length && forward[other] != -1) {
+                            int forwardX = forward[other];
+                            int forwardY = forwardX - (other - offset);
+                            if (forwardX >= n - x) {
+                                return ((long) (aStart + forwardX) << 32) | (bStart + forwardY);
+                            }
+                        }
+                    }
+                }
+            }
+            // Nothing in common: remove all of a, then add all of b
+            return ((long) aEnd << 32) | bStart;
+        }
+
+        private void reset(int offset) {
+            int length = 2 * offset + 2;
+            if (forward.length < length) {
+                forward = new int[length];
+                backward = new int[length];
+            }
+            Arrays.fill(forward, 0, length, -1);
+            Arrays.fill(backward, 0, length, -1);
+            forward[offset + 1] = 0;
+            backward[offset + 1] = 0;
+        }
+
+        // Moves the diagonals to the middle of arrays for more edits, returns the new offset
+        private int grow(int offset, int newOffset) {
+            int length = 2 * offset + 2;
+            int[] newForward = new int[2 * newOffset + 2];
+            int[] newBackward = new int[2 * newOffset + 2];
+            Arrays.fill(newForward, -1);
+            Arrays.fill(newBackward, -1);
+            System.arraycopy(forward, 0, newForward, newOffset - offset, length);
+            System.arraycopy(backward, 0, newBackward, newOffset - offset, length);
+            forward = newForward;
+            backward = newBackward;
+            return newOffset;
+        }
+    }
+
+    // Reads a version again line by line, lines are copied to the output and never kept whole
+    private static class LineReader implements AutoCloseable {
+        private final InputStream in;
+        private final byte[] buffer = new byte[MyGitHashFunction.BUFFER_SIZE];
+        private int position = 0;
+        private int limit = 0;
+        private int line = 0;
+
+        private LineReader(Source source) throws IOException {
+            in = source == null ? InputStream.nullInputStream() : source.open();
+        }
+
+        private void skipTo(int target) throws IOException {
+            while (line < target) {
+                copyLine((char) 0, null);
+            }
+        }
+
+        // Without an output the line is skipped
+        private void copyLine(char prefix, OutputStream out) throws IOException {
+            if (out != null) {
+                out.write(prefix);
+            }
+            while (true) {
+                if (position == limit && !fill()) {
+                    if (out != null) {
+                        out.write("\n\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8));
+                    }
+                    break;
+                }
+                int end = position;
+                while (end < limit && buffer[end] != '\n') {
+                    end++;
+                }
+                boolean found = end < limit;
+                if (found) {
+                    end++;
+                }
+                if (out != null) {
+                    out.write(buffer, position, end - position);
+                }
+                position = end;
+                if (found) {
+                    break;
+                }
+            }
+            line++;
+        }
+
+        private boolean fill() throws IOException {
+            int read = in.read(buffer);
+            if (read <= 0) {
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
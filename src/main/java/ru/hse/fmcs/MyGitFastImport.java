@@ -0,0 +1,314 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/*
+ * Fast-import stream: history written as text commands, read once from start to end.
+ *
+ *     blob
+ *     mark :<n>
+ *     data <length>
+ *     <length bytes of content>
+ *
+ *     commit <branch>
+ *     mark :<n>
+ *     author <name>
+ *     date <milliseconds since the epoch>
+ *     data <length>
+ *     <length bytes of message>
+ *     from <:n, commit hash or branch>
+ *     M <:n or object hash> <path>
+ *     D <path>
+ *
+ *     reset <branch>
+ *     from <:n, commit hash or branch>
+ *
+ * Marks, author, date and from are optional, a commit goes on from the last commit of its branch by default.
+ * Paths are relative to the root of the repository. Empty lines and lines starting with # are skipped.
+ */
+public class MyGitFastImport {
+    public enum Type {
+        BLOB, COMMIT, RESET
+    }
+
+    // A file written by a commit, or removed by it when the object is null
+    public static class Change {
+        private final String path;
+        private final String object;
+
+        private Change(String path, String object) {
+            this.path = path;
+            this.object = object;
+        }
+
+        public @NotNull String getPath() {
+            return path;
+        }
+
+        public String getObject() {
+            return object;
+        }
+    }
+
+    public static class Command {
+        private final Type type;
+        private final String branch;
+        private final List<Change> changes = new ArrayList<>();
+        private String mark;
+        private String author;
+        private Date date;
+        private String message;
+        private String from;
+        private long length;
+
+        private Command(Type type, String branch) {
+            this.type = type;
+            this.branch = branch;
+        }
+
+        public @NotNull Type getType() {
+            return type;
+        }
+
+        public String getBranch() {
+            return branch;
+        }
+
+        public String getMark() {
+            return mark;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public @NotNull List<Change> getChanges() {
+            return changes;
+        }
+
+        // Length of the content of a blob
+        public long getLength() {
+            return length;
+        }
+    }
+
+    /*
+     * Reads commands one after another. The content of a blob is read through getContent before
+     * the next command is requested, the rest of it is skipped otherwise.
+     */
+    public static class Reader implements Closeable {
+        private final InputStream in;
+        private String peeked;
+        private int lineNumber = 0;
+        private long contentLeft = 0;
+
+        public Reader(@NotNull InputStream in) {
+            this.in = in instanceof BufferedInputStream ? in : new BufferedInputStream(in, MyGitHashFunction.BUFFER_SIZE);
+        }
+
+        /*
+         * The next command, or null at the end of the stream.
+         */
+        public Command next() throws IOException, GitException {
+            skipContent();
+            String line = nextCommandLine();
+            if (line == null) {
+                return null;
+            }
+            if (line.equals("blob")) {
+                Command command = new Command(Type.BLOB, null);
+                line = readLine();
+                if (line != null && line.startsWith("mark ")) {
+                    command.mark = line.substring(5);
+                    line = readLine();
+                }
+                command.length = parseDataLength(line);
+                contentLeft = command.length;
+                return command;
+            }
+            if (line.startsWith("commit ")) {
+                Command command = new Command(Type.COMMIT, line.substring(7));
+                readCommit(command);
+                return command;
+            }
+            if (line.startsWith("reset ")) {
+                Command command = new Command(Type.RESET, line.substring(6));
+                line = peekLine();
+                if (line != null && line.startsWith("from ")) {
+                    command.from = readLine().substring(5);
+                }
+                return command;
+            }
+            throw error("unknown command '" + line + "'");
+        }
+
+        public @NotNull InputStream getContent() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    if (contentLeft == 0) {
+                        return -1;
+                    }
+                    int b = in.read();
+                    if (b < 0) {
+                        throw new EOFException("Stream ended inside a blob");
+                    }
+                    contentLeft--;
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (contentLeft == 0) {
+                        return -1;
+                    }
+                    int read = in.read(b, off, (int) Math.min(len, contentLeft));
+                    if (read < 0) {
+                        throw new EOFException("Stream ended inside a blob");
+                    }
+                    contentLeft -= read;
+                    return read;
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void readCommit(Command command) throws IOException, GitException {
+            String line = readLine();
+            if (line != null && line.startsWith("mark ")) {
+                command.mark = line.substring(5);
+                line = readLine();
+            }
+            if (line != null && line.startsWith("author ")) {
+                command.author = line.substring(7);
+                line = readLine();
+            }
+            if (line != null && line.startsWith("date ")) {
+                try {
+                    command.date = new Date(Long.parseLong(line.substring(5)));
+                } catch (NumberFormatException e) {
+                    throw error("wrong date '" + line.substring(5) + "'");
+                }
+                line = readLine();
+            }
+            byte[] message = new byte[Math.toIntExact(parseDataLength(line))];
+            readFully(message);
+            command.message = new String(message, StandardCharsets.UTF_8);
+            // The message may be followed by a line break of its own
+            in.mark(1);
+            if (in.read() != '\n') {
+                in.reset();
+            }
+            line = peekLine();
+            if (line != null && line.startsWith("from ")) {
+                command.from = readLine().substring(5);
+            }
+            // File changes go on up to an empty line or the next command
+            while ((line = peekLine()) != null && (line.startsWith("M ") || line.startsWith("D "))) {
+                readLine();
+                if (line.startsWith("D ")) {
+                    command.changes.add(new Change(line.substring(2), null));
+                } else {
+                    int space = line.indexOf(' ', 2);
+                    if (space < 0) {
+                        throw error("wrong file change '" + line + "'");
+                    }
+                    command.changes.add(new Change(line.substring(space + 1), line.substring(2, space)));
+                }
+            }
+        }
+
+        private long parseDataLength(String line) throws GitException {
+            if (line == null || !line.startsWith("data ")) {
+                throw error("data expected");
+            }
+            try {
+                return Long.parseLong(line.substring(5));
+            } catch (NumberFormatException e) {
+                throw error("wrong data length '" + line.substring(5) + "'");
+            }
+        }
+
+        private String nextCommandLine() throws IOException {
+            String line;
+            while ((line = readLine()) != null && (line.isEmpty() || line.startsWith("#"))) {
+                // Skipped
+            }
+            return line;
+        }
+
+        private String peekLine() throws IOException {
+            if (peeked == null) {
+                peeked = readLine();
+            }
+            return peeked;
+        }
+
+        private String readLine() throws IOException {
+            if (peeked != null) {
+                String line = peeked;
+                peeked = null;
+                return line;
+            }
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                line.write(b);
+            }
+            if (b < 0 && line.size() == 0) {
+                return null;
+            }
+            lineNumber++;
+            return line.toString(StandardCharsets.UTF_8);
+        }
+
+        private void readFully(byte[] bytes) throws IOException {
+            for (int offset = 0; offset < bytes.length; ) {
+                int read = in.read(bytes, offset, bytes.length - offset);
+                if (read < 0) {
+                    throw new EOFException("Stream ended inside a message");
+                }
+                offset += read;
+            }
+        }
+
+        private void skipContent() throws IOException {
+            while (contentLeft > 0) {
+                long skipped = in.skip(contentLeft);
+                if (skipped == 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException("Stream ended inside a blob");
+                    }
+                    skipped = 1;
+                }
+                contentLeft -= skipped;
+            }
+        }
+
+        private GitException error(String message) {
+            return new GitException("Wrong fast-import stream at line " + lineNumber + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Temporary files which are renamed into place when complete.
+ * They are created like any other file, with the permissions the umask leaves. Files.createTempFile
+ * makes them readable by the owner only and the rename keeps that, so repositories shared between
+ * users, alternates and hard-linked clones would lose access to the files written through them.
+ */
+public class MyGitFiles {
+    public static final String TEMP_PREFIX = "tmp-";
+
+    private MyGitFiles() {
+    }
+
+    // Same naming as Files.createTempFile: prefix, random number, suffix or ".tmp"
+    public static @NotNull Path createTempFile(@NotNull Path dir, @NotNull String prefix, String suffix) throws IOException {
+        while (true) {
+            String name = prefix + Long.toUnsignedString(ThreadLocalRandom.current().nextLong()) + (suffix == null ? ".tmp" : suffix);
+            try {
+                return Files.createFile(dir.resolve(name));
+            } catch (FileAlreadyExistsException e) {
+                // Another temporary file took the name, a new one is drawn
+            }
+        }
+    }
+}
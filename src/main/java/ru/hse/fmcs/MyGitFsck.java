@@ -0,0 +1,147 @@
+package ru.hse.fmcs;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+import static ru.hse.fmcs.MyGitHashFunction.BUFFER_SIZE;
+
+/*
+ * Integrity check of the object store: every object and chunk is read again and rehashed in parallel.
+ * Reads may be limited to a number of bytes per second shared by all threads, so a check of a live
+ * repository leaves the disk to it. Progress is reported every tenth of the objects.
+ */
+public class MyGitFsck {
+    private interface Source {
+        InputStream open() throws IOException;
+    }
+
+    // Reports steps in order, each time another tenth of the work is done
+    private static class Progress {
+        private final PrintStream output;
+        private final String message;
+        private final int total;
+        private int done = 0;
+        private int reportedTenths = 0;
+
+        private Progress(PrintStream output, String message, int total) {
+            this.output = output;
+            this.message = message;
+            this.total = total;
+        }
+
+        private synchronized void step() {
+            done++;
+            int tenths = done * 10 / total;
+            if (tenths > reportedTenths) {
+                reportedTenths = tenths;
+                output.printf("%s: %d%% (%d/%d)\n", message, done * 100 / total, done, total);
+            }
+        }
+    }
+
+    private final MyGitObjectStore objects;
+    private final PrintStream output;
+    private final int threads;
+    private final RateLimiter limiter; // null when reads are not limited
+    private final Queue<String> problems = new ConcurrentLinkedQueue<>();
+    private int objectCount = 0;
+    private int chunkCount = 0;
+
+    public MyGitFsck(@NotNull MyGitObjectStore objects, @NotNull PrintStream output, int threads, double bytesPerSecond) {
+        this.objects = objects;
+        this.output = output;
+        this.threads = threads;
+        this.limiter = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+    }
+
+    /*
+     * Returns the problems found, sorted.
+     */
+    public @NotNull List<String> checkObjects() throws GitException {
+        List<String> hashes;
+        List<String> chunks;
+        try {
+            hashes = objects.listObjects();
+            chunks = objects.listChunks();
+        } catch (IOException e) {
+            throw new GitException("Can't list objects", e);
+        }
+        objectCount = hashes.size();
+        chunkCount = chunks.size();
+        Progress progress = new Progress(output, "Checking objects", hashes.size() + chunks.size());
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (String hash : hashes) {
+            tasks.add(() -> check("object", hash, () -> objects.newInputStream(hash), progress));
+        }
+        for (String hash : chunks) {
+            tasks.add(() -> check("chunk", hash, () -> objects.newChunkInputStream(hash), progress));
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            pool.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GitException("Check interrupted", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        List<String> result = new ArrayList<>(problems);
+        Collections.sort(result);
+        return result;
+    }
+
+    public int getObjectCount() {
+        return objectCount;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    private Void check(String kind, String hash, Source source, Progress progress) {
+        try (InputStream in = source.open()) {
+            MyGitHashFunction.Hasher hasher = objects.getHashFunction().newHasher();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                if (limiter != null && read > 0) {
+                    limiter.acquire(read);
+                }
+                hasher.update(ByteBuffer.wrap(buffer, 0, read));
+            }
+            String actual = hasher.finish();
+            if (!actual.equals(hash)) {
+                problems.add(String.format("%s %s: content has hash %s", kind, hash, actual));
+            }
+        } catch (IOException e) {
+            addReadProblem(kind, hash, e);
+        } catch (UncheckedIOException e) {
+            // Chunks of a manifest are opened while it is read
+            addReadProblem(kind, hash, e.getCause());
+        }
+        progress.step();
+        return null;
+    }
+
+    private void addReadProblem(String kind, String hash, IOException e) {
+        if (!(e instanceof NoSuchFileException)) {
+            problems.add(String.format("%s %s: can't be read: %s", kind, hash, e));
+        } else if (!Path.of(((NoSuchFileException) e).getFile()).getFileName().toString().equals(hash)) {
+            // The object itself may have been removed by a writer while the check was running
+            problems.add(String.format("%s %s: %s is missing", kind, hash, ((NoSuchFileException) e).getFile()));
+        }
+    }
+}
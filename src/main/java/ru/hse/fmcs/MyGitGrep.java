@@ -0,0 +1,167 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.regex.Pattern;
+
+/*
+ * Search of stored objects line by line. Every object is searched once however many commits refer to it:
+ * searches run on a fork-join pool as soon as they are submitted and the result is shared by all who ask.
+ * Objects are read through memory maps, chunked ones as streams. Binary objects, those with a zero byte
+ * among the first bytes, are not searched.
+ */
+public class MyGitGrep implements AutoCloseable {
+    private static final int BINARY_CHECK_SIZE = 8000;
+    private static final long MAP_SIZE = 64 << 20;
+    private static final long MIN_MAPPED_SIZE = 64 << 10; // Smaller objects are cheaper to read than to map
+
+    public static class Match {
+        private final int line;
+        private final String text;
+
+        private Match(int line, String text) {
+            this.line = line;
+            this.text = text;
+        }
+
+        public int getLine() {
+            return line;
+        }
+
+        public @NotNull String getText() {
+            return text;
+        }
+    }
+
+    private final MyGitObjectStore objects;
+    private final Pattern pattern;
+    private final ForkJoinPool pool;
+    private final Map<String, ForkJoinTask<List<Match>>> searches = new ConcurrentHashMap<>();
+
+    public MyGitGrep(@NotNull MyGitObjectStore objects, @NotNull Pattern pattern, int threads) {
+        this.objects = objects;
+        this.pattern = pattern;
+        pool = new ForkJoinPool(threads);
+    }
+
+    /*
+     * Starts the search of the object unless it was already started.
+     */
+    public void submit(@NotNull String hash) {
+        searches.computeIfAbsent(hash, key -> pool.submit(() -> search(key)));
+    }
+
+    /*
+     * Matching lines of the object, waits for its search.
+     */
+    public @NotNull List<Match> getMatches(@NotNull String hash) throws GitException {
+        submit(hash);
+        try {
+            return searches.get(hash).join();
+        } catch (RuntimeException e) {
+            throw new GitException("Can't search object " + hash, e);
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    private List<Match> search(String hash) throws IOException {
+        LineMatcher matcher = new LineMatcher();
+        Path path = objects.isChunked(hash) ? null : objects.getObjectPath(hash);
+        if (path == null) {
+            try (InputStream in = objects.newInputStream(hash)) {
+                byte[] buffer = new byte[MyGitHashFunction.BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    if (!matcher.feed(ByteBuffer.wrap(buffer, 0, read))) {
+                        return List.of();
+                    }
+                }
+            }
+        } else if (Files.size(path) < MIN_MAPPED_SIZE) {
+            if (!matcher.feed(ByteBuffer.wrap(Files.readAllBytes(path)))) {
+                return List.of();
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(path)) {
+                long size = channel.size();
+                for (long position = 0; position < size; position += MAP_SIZE) {
+                    if (!matcher.feed(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position)))) {
+                        return List.of();
+                    }
+                }
+            }
+        }
+        matcher.finish();
+        return matcher.matches;
+    }
+
+    // Splits content given in parts into lines, a line may span parts
+    private class LineMatcher {
+        private final List<Match> matches = new ArrayList<>();
+        private byte[] line = new byte[256];
+        private int length = 0;
+        private int lineNumber = 0;
+        private long position = 0;
+
+        // False when the content turned out to be binary
+        private boolean feed(ByteBuffer buffer) {
+            int start = buffer.position();
+            for (int i = buffer.position(); i < buffer.limit(); ++i) {
+                byte b = buffer.get(i);
+                if (b == 0 && position + i - buffer.position() < BINARY_CHECK_SIZE) {
+                    return false;
+                }
+                if (b == '\n') {
+                    append(buffer, start, i);
+                    matchLine();
+                    start = i + 1;
+                }
+            }
+            append(buffer, start, buffer.limit());
+            position += buffer.limit() - buffer.position();
+            return true;
+        }
+
+        private void finish() {
+            if (length > 0) {
+                matchLine();
+            }
+        }
+
+        private void append(ByteBuffer buffer, int from, int to) {
+            if (length + to - from > line.length) {
+                line = Arrays.copyOf(line, Math.max(line.length * 2, length + to - from));
+            }
+            buffer.duplicate().position(from).get(line, length, to - from);
+            length += to - from;
+        }
+
+        private void matchLine() {
+            lineNumber++;
+            int end = length > 0 && line[length - 1] == '\r' ? length - 1 : length;
+            String text = new String(line, 0, end, StandardCharsets.UTF_8);
+            if (pattern.matcher(text).find()) {
+                matches.add(new Match(lineNumber, text));
+            }
+            length = 0;
+        }
+    }
+}
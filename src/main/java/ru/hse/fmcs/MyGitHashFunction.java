@@ -0,0 +1,66 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Hash of file contents which identifies objects in the store.
+ * The function is chosen when the repository is created and recorded in metainf.
+ */
+public interface MyGitHashFunction {
+    String MD5 = "md5";
+    String TREE_SHA256 = "tree-sha256";
+    String DEFAULT = TREE_SHA256;
+
+    long MAPPED_THRESHOLD = 1L << 20;
+    long MAPPED_WINDOW = 64L << 20;
+    int BUFFER_SIZE = 1 << 16;
+
+    interface Hasher {
+        /*
+         * Consumes remaining bytes of the buffer. The buffer may be reused by the caller afterwards.
+         */
+        void update(@NotNull ByteBuffer buffer);
+
+        @NotNull String finish();
+    }
+
+    @NotNull String getName();
+
+    @NotNull Hasher newHasher();
+
+    default @NotNull String hash(@NotNull Path path) throws IOException {
+        Hasher hasher = newHasher();
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = in.size();
+            if (size > MAPPED_THRESHOLD) {
+                for (long position = 0; position < size; position += MAPPED_WINDOW) {
+                    hasher.update(in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_WINDOW, size - position)));
+                }
+            } else {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (in.read(buffer) != -1) {
+                    buffer.flip();
+                    hasher.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        return hasher.finish();
+    }
+
+    static @NotNull MyGitHashFunction forName(String name) throws GitException {
+        if (name == null || name.equals(MD5)) {
+            // Repositories created before the hash function was recorded use md5
+            return new MyGitMd5HashFunction();
+        } else if (name.equals(TREE_SHA256)) {
+            return new MyGitTreeSha256HashFunction();
+        }
+        throw new GitException("Unknown hash function " + name);
+    }
+}
@@ -0,0 +1,184 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.Consumer;
+
+/*
+ * Rules of .mygitignore files and the walk over the working directory which applies them.
+ * Every directory may contain its own .mygitignore, its rules are relative to that directory.
+ * Ignored directories are pruned from the walk, their contents are never visited.
+ * Compiled rules and decisions about directories are cached, so the object lives for one command.
+ * With a sparse-checkout cone the walk also skips everything outside of it.
+ * Nested repositories and linked worktrees (directories with their own myGit) are ignored as a whole.
+ */
+public class MyGitIgnore {
+    public static final String FILE_NAME = ".mygitignore";
+
+    private static class Rule {
+        private final Path base;
+        private final PathMatcher matcher;
+        private final boolean anchored;
+        private final boolean directoryOnly;
+        private final boolean negated;
+
+        private Rule(Path base, String pattern) {
+            this.base = base;
+            negated = pattern.startsWith("!");
+            if (negated) {
+                pattern = pattern.substring(1);
+            }
+            directoryOnly = pattern.endsWith("/");
+            if (directoryOnly) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            anchored = pattern.contains("/");
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        }
+
+        private boolean matches(Path path, boolean isDirectory) {
+            if (directoryOnly && !isDirectory) {
+                return false;
+            }
+            return anchored ? matcher.matches(base.relativize(path)) : matcher.matches(path.getFileName());
+        }
+    }
+
+    private final Path root;
+    private final Path myGitDir;
+    private final MyGitSparseCheckout cone;
+    private final Map<Path, List<Rule>> rules = new HashMap<>(); // <directory, rules of it and its parents>
+    private final Map<Path, Boolean> ignoredDirectories = new HashMap<>();
+
+    public MyGitIgnore(@NotNull Path root, @NotNull Path myGitDir, MyGitSparseCheckout cone) {
+        this.root = root;
+        this.myGitDir = myGitDir;
+        this.cone = cone;
+    }
+
+    public boolean isIgnored(@NotNull Path path) {
+        return isIgnored(path, Files.isDirectory(path));
+    }
+
+    /*
+     * Calls func for every regular file under start which is not ignored.
+     */
+    public void walk(@NotNull Path start, @NotNull Consumer<Path> func) throws IOException {
+        walk(start, func, dir -> {});
+    }
+
+    /*
+     * Same as walk, additionally calls afterDirectory for every visited directory after its contents.
+     */
+    public void walk(@NotNull Path start, @NotNull Consumer<Path> func, @NotNull Consumer<Path> afterDirectory)
+            throws IOException {
+        if (!start.equals(root) && isIgnored(start)) {
+            return;
+        }
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(myGitDir) || (cone != null && !cone.mayContain(dir))
+                        || (!dir.equals(start) && isIgnoredDirectory(dir))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile() && (cone == null || cone.contains(file)) && !isIgnored(file, false)) {
+                    func.accept(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                afterDirectory.accept(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private boolean isIgnored(Path path, boolean isDirectory) {
+        if (!path.startsWith(root) || path.equals(root)) {
+            return false;
+        }
+        if (path.startsWith(myGitDir)) {
+            return true;
+        }
+        if (isDirectory) {
+            return isIgnoredDirectory(path);
+        }
+        Path parent = path.getParent();
+        if (!parent.equals(root) && isIgnoredDirectory(parent)) {
+            return true;
+        }
+        return matches(path, false);
+    }
+
+    private boolean isIgnoredDirectory(Path dir) {
+        Boolean ignored = ignoredDirectories.get(dir);
+        if (ignored == null) {
+            Path parent = dir.getParent();
+            ignored = (!parent.equals(root) && isIgnoredDirectory(parent))
+                    || Files.isDirectory(dir.resolve(myGitDir.getFileName())) || matches(dir, true);
+            ignoredDirectories.put(dir, ignored);
+        }
+        return ignored;
+    }
+
+    // The last matching rule wins, so a deeper .mygitignore overrides its parents
+    private boolean matches(Path path, boolean isDirectory) {
+        boolean ignored = false;
+        for (Rule rule : getRules(path.getParent())) {
+            if (rule.matches(path, isDirectory)) {
+                ignored = !rule.negated;
+            }
+        }
+        return ignored;
+    }
+
+    private List<Rule> getRules(Path dir) {
+        List<Rule> result = rules.get(dir);
+        if (result != null) {
+            return result;
+        }
+        result = new ArrayList<>();
+        if (!dir.equals(root)) {
+            result.addAll(getRules(dir.getParent()));
+        }
+        Path ignoreFile = dir.resolve(FILE_NAME);
+        if (Files.isRegularFile(ignoreFile)) {
+            try {
+                for (String line : Files.readAllLines(ignoreFile, StandardCharsets.UTF_8)) {
+                    line = line.strip();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    try {
+                        result.add(new Rule(dir, line));
+                    } catch (IllegalArgumentException ignored) {
+                        // A malformed pattern ignores nothing
+                    }
+                }
+            } catch (IOException ignored) {
+                // An unreadable ignore file ignores nothing
+            }
+        }
+        rules.put(dir, result);
+        return result;
+    }
+}
@@ -0,0 +1,121 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Readers-writer lock of a repository, for threads of this process and for other processes.
+ * Threads are coordinated by a ReentrantReadWriteLock, processes by a FileChannel lock of myGit/lock:
+ * shared while some thread reads, exclusive while a thread writes.
+ * One instance exists per lock file in the process, file locks of one JVM must not overlap.
+ */
+public class MyGitLock {
+    private static final Map<Path, MyGitLock> LOCKS = new ConcurrentHashMap<>();
+
+    private final Path lockPath;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private FileLock fileLock;
+    private int readers = 0;
+
+    private MyGitLock(Path lockPath) {
+        this.lockPath = lockPath;
+    }
+
+    public static @NotNull MyGitLock forRepository(@NotNull Path myGitDir) {
+        return forFile(myGitDir.resolve("lock"));
+    }
+
+    // Orders what readers of a partial clone record about the objects they fetch, see myGit/fetch-lock
+    public static @NotNull MyGitLock forFetches(@NotNull Path myGitDir) {
+        return forFile(myGitDir.resolve("fetch-lock"));
+    }
+
+    private static MyGitLock forFile(Path lockPath) {
+        return LOCKS.computeIfAbsent(lockPath.toAbsolutePath().normalize(), MyGitLock::new);
+    }
+
+    public void lockRead() throws GitException {
+        boolean nested = lock.isWriteLockedByCurrentThread();
+        lock.readLock().lock();
+        if (nested) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                if (readers == 0) {
+                    fileLock = getChannel().lock(0, Long.MAX_VALUE, true);
+                }
+                readers++;
+            } catch (IOException e) {
+                lock.readLock().unlock();
+                throw new GitException("Can't lock repository", e);
+            }
+        }
+    }
+
+    public void unlockRead() {
+        if (!lock.isWriteLockedByCurrentThread()) {
+            synchronized (this) {
+                if (--readers == 0) {
+                    releaseFileLock();
+                }
+            }
+        }
+        lock.readLock().unlock();
+    }
+
+    public void lockWrite() throws GitException {
+        lock.writeLock().lock();
+        if (lock.getWriteHoldCount() > 1) {
+            return;
+        }
+        try {
+            fileLock = getChannel().lock();
+        } catch (IOException e) {
+            lock.writeLock().unlock();
+            throw new GitException("Can't lock repository", e);
+        }
+    }
+
+    public void unlockWrite() {
+        if (lock.getWriteHoldCount() == 1) {
+            releaseFileLock();
+        }
+        lock.writeLock().unlock();
+    }
+
+    public boolean isWriteLockedByCurrentThread() {
+        return lock.isWriteLockedByCurrentThread();
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            Files.createDirectories(lockPath.getParent());
+            // Shared locks need a readable channel, exclusive ones a writable
+            channel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    private void releaseFileLock() {
+        try {
+            if (fileLock != null) {
+                fileLock.release();
+            }
+        } catch (IOException ignored) {
+            // The lock is released with the channel anyway
+        } finally {
+            fileLock = null;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package ru.hse.fmcs;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+
+/*
+ * Plain md5 of the whole content, the hash used by the first versions of MyGit.
+ */
+public class MyGitMd5HashFunction implements MyGitHashFunction {
+    @Override
+    public @NotNull String getName() {
+        return MD5;
+    }
+
+    @Override
+    public @NotNull Hasher newHasher() {
+        MessageDigest digest = DigestUtils.getMd5Digest();
+        return new Hasher() {
+            @Override
+            public void update(@NotNull ByteBuffer buffer) {
+                digest.update(buffer);
+            }
+
+            @Override
+            public @NotNull String finish() {
+                return Hex.encodeHexString(digest.digest());
+            }
+        };
+    }
+}
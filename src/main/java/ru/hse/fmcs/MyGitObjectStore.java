@@ -0,0 +1,873 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+import static ru.hse.fmcs.MyGitFiles.TEMP_PREFIX;
+import static ru.hse.fmcs.MyGitHashFunction.*;
+
+/*
+ * Content-addressed storage of file versions in myGit/files.
+ * Every object is named by the hash of its content and never changes after it was written.
+ * Large files are split into content-defined chunks stored once in myGit/chunks,
+ * such a file is stored as a manifest listing its chunks.
+ * Alternates are stores of other repositories on the same machine which are read when an object
+ * is not found here; new objects are always written to this store.
+ * Objects and chunks written and deleted here are counted in the stats when they are given.
+ * A partial store has a backing store: objects it lacks are promised by the backing one, they are
+ * copied in on first use and may be evicted again when the store grows past its limit.
+ */
+public class MyGitObjectStore {
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    private final Path filesDir;
+    private final Path chunksDir;
+    private final MyGitHashFunction hashFunction;
+    private final MyGitChunker chunker;
+    private final List<MyGitObjectStore> alternates = new ArrayList<>();
+    private MyGitStats stats;
+    private MyGitStats fetched = new MyGitStats(); // Counters of objects fetched since takeFetched
+    private MyGitObjectStore backing;
+
+    public MyGitObjectStore(@NotNull Path filesDir, Path chunksDir, @NotNull MyGitHashFunction hashFunction, MyGitChunker chunker) {
+        this.filesDir = filesDir;
+        this.chunksDir = chunksDir;
+        this.hashFunction = hashFunction;
+        this.chunker = chunker;
+    }
+
+    public void addAlternate(@NotNull MyGitObjectStore alternate) {
+        alternates.add(alternate);
+    }
+
+    public void setStats(MyGitStats stats) {
+        this.stats = stats;
+    }
+
+    public void setBacking(MyGitObjectStore backing) {
+        this.backing = backing;
+    }
+
+    public boolean isPartial() {
+        return backing != null;
+    }
+
+    /*
+     * Counters of the objects fetched from the backing store since the last call, they are in the stats as well.
+     * A reader of the repository saves them on their own, it doesn't write the stats.
+     */
+    public synchronized @NotNull MyGitStats takeFetched() {
+        MyGitStats result = fetched;
+        fetched = new MyGitStats();
+        return result;
+    }
+
+    public @NotNull MyGitHashFunction getHashFunction() {
+        return hashFunction;
+    }
+
+    public @NotNull String hash(@NotNull Path path) throws GitException {
+        try {
+            return hashFunction.hash(path);
+        } catch (IOException e) {
+            throw new GitException("Can't read file", e);
+        }
+    }
+
+    public @NotNull Path getObjectPath(@NotNull String hash) {
+        fetchUnchecked(hash);
+        Path path = find(store -> store.filesDir.resolve(hash));
+        return path == null ? filesDir.resolve(hash) : path;
+    }
+
+    // A promised object counts as contained
+    public boolean contains(@NotNull String hash) {
+        return isPresent(hash) || backing != null && backing.contains(hash);
+    }
+
+    public boolean isChunked(@NotNull String hash) {
+        fetchUnchecked(hash);
+        return find(store -> store.filesDir.resolve(hash)) == null && find(store -> store.getManifestPath(hash)) != null;
+    }
+
+    /*
+     * Hashes the file and writes it into the store in a single pass.
+     * The content goes to a temporary object which is renamed into place,
+     * or dropped if an object with the same hash is already stored.
+     */
+    public @NotNull String store(@NotNull Path source) throws GitException {
+        Path temp = null;
+        try {
+            temp = MyGitFiles.createTempFile(filesDir, TEMP_PREFIX, null);
+            Hasher hasher = hashFunction.newHasher();
+            try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                 FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long size = in.size();
+                if (chunker != null && chunksDir != null && chunker.shouldChunk(size)) {
+                    storeChunks(in, out, hasher);
+                    return publishManifest(temp, hasher.finish(), size);
+                } else if (size > MAPPED_THRESHOLD) {
+                    for (long position = 0; position < size; position += MAPPED_WINDOW) {
+                        MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position,
+                                Math.min(MAPPED_WINDOW, size - position));
+                        hasher.update(window.duplicate());
+                        writeFully(out, window);
+                    }
+                } else {
+                    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                    while (in.read(buffer) != -1) {
+                        buffer.flip();
+                        hasher.update(buffer.duplicate());
+                        writeFully(out, buffer);
+                        buffer.clear();
+                    }
+                }
+            }
+            String hash = hasher.finish();
+            long size = Files.size(temp);
+            if (publish(temp, hash, filesDir.resolve(hash)) && stats != null) {
+                stats.addObject(hash, size, size);
+            }
+            return hash;
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            throw new GitException("Can't store file " + source, e);
+        }
+    }
+
+    /*
+     * Same as store, for content which comes as a stream of the given length.
+     */
+    public @NotNull String store(@NotNull InputStream in, long length) throws GitException {
+        Path temp = null;
+        try {
+            temp = MyGitFiles.createTempFile(filesDir, TEMP_PREFIX, null);
+            Hasher hasher = hashFunction.newHasher();
+            boolean chunked = chunker != null && chunksDir != null && chunker.shouldChunk(length);
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                if (chunked) {
+                    storeChunks(in, length, out, hasher);
+                } else {
+                    byte[] bytes = new byte[BUFFER_SIZE];
+                    for (long left = length; left > 0; ) {
+                        int read = in.read(bytes, 0, (int) Math.min(bytes.length, left));
+                        if (read < 0) {
+                            throw new EOFException("Stream ended before the end of the object");
+                        }
+                        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+                        hasher.update(buffer.duplicate());
+                        writeFully(out, buffer);
+                        left -= read;
+                    }
+                }
+            }
+            String hash = hasher.finish();
+            if (chunked) {
+                return publishManifest(temp, hash, length);
+            }
+            if (publish(temp, hash, filesDir.resolve(hash)) && stats != null) {
+                stats.addObject(hash, length, length);
+            }
+            return hash;
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            throw new GitException("Can't store object", e);
+        }
+    }
+
+    /*
+     * Same as store, for content which is in memory already, the position of the buffer is left as it was.
+     * The content is hashed first and not written at all when the object is stored already.
+     */
+    public @NotNull String store(@NotNull ByteBuffer content) throws GitException {
+        Hasher hasher = hashFunction.newHasher();
+        hasher.update(content.duplicate());
+        String hash = hasher.finish();
+        if (contains(hash)) {
+            freshen(hash);
+            return hash;
+        }
+        long length = content.remaining();
+        boolean chunked = chunker != null && chunksDir != null && chunker.shouldChunk(length);
+        Path temp = null;
+        try {
+            temp = MyGitFiles.createTempFile(filesDir, TEMP_PREFIX, null);
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                if (chunked) {
+                    try (BufferedWriter manifest = newManifestWriter(out)) {
+                        cutChunks(content.duplicate(), true, manifest, null);
+                    }
+                } else {
+                    writeFully(out, content.duplicate());
+                }
+            }
+            if (chunked) {
+                return publishManifest(temp, hash, length);
+            }
+            if (publish(temp, hash, filesDir.resolve(hash)) && stats != null) {
+                stats.addObject(hash, length, length);
+            }
+            return hash;
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            throw new GitException("Can't store object", e);
+        }
+    }
+
+    /*
+     * The content goes to a hidden temporary file next to the target which is renamed over it,
+     * so a missing or broken object leaves the target as it was.
+     */
+    public void copyTo(@NotNull String hash, @NotNull Path target) throws GitException {
+        Path temp = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+                copyTo(hash, out);
+            }
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | UncheckedIOException e) {
+            deleteQuietly(temp);
+            throw new GitException("Can't copy file from myGit repository", e);
+        }
+    }
+
+    public void copyTo(@NotNull String hash, @NotNull WritableByteChannel out) throws IOException {
+        if (isChunked(hash)) {
+            // Chunks are streamed one after another, the file is never assembled in memory
+            for (String chunk : readManifest(hash)) {
+                transfer(getChunkPath(chunk), out);
+            }
+        } else {
+            transfer(getObjectPath(hash), out);
+        }
+    }
+
+    /*
+     * Content of the stored file, a chunked one is read chunk after chunk.
+     */
+    public @NotNull InputStream newInputStream(@NotNull String hash) throws IOException {
+        if (!isChunked(hash)) {
+            return Files.newInputStream(getObjectPath(hash));
+        }
+        Iterator<String> chunks = readManifest(hash).iterator();
+        return new SequenceInputStream(new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                try {
+                    return Files.newInputStream(getChunkPath(chunks.next()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    /*
+     * Content of the stored file as a channel. A large file is read through memory-mapped windows,
+     * so threads reading it share the page cache without copying it through read calls.
+     * The file is opened at once, the channel stays readable if the object is deleted meanwhile.
+     */
+    public @NotNull ReadableByteChannel newChannel(@NotNull String hash) throws IOException {
+        if (isChunked(hash)) {
+            return Channels.newChannel(newInputStream(hash));
+        }
+        FileChannel file = FileChannel.open(getObjectPath(hash), StandardOpenOption.READ);
+        return file.size() > MAPPED_THRESHOLD ? new MappedChannel(file) : file;
+    }
+
+    public @NotNull InputStream newChunkInputStream(@NotNull String hash) throws IOException {
+        return Files.newInputStream(getChunkPath(hash));
+    }
+
+    /*
+     * Hashes of the objects kept in this store itself, alternates are not listed.
+     */
+    public @NotNull List<String> listObjects() throws IOException {
+        List<String> hashes = new ArrayList<>();
+        for (String name : listNames(filesDir)) {
+            hashes.add(toHash(name));
+        }
+        return hashes;
+    }
+
+    public @NotNull List<String> listChunks() throws IOException {
+        return chunksDir == null ? new ArrayList<>() : listNames(chunksDir);
+    }
+
+    /*
+     * Length of the stored file, for a chunked one it is the sum of its chunk lengths.
+     */
+    public long size(@NotNull String hash) throws IOException {
+        if (!isChunked(hash)) {
+            return Files.size(getObjectPath(hash));
+        }
+        long size = 0;
+        Path manifest = find(store -> store.getManifestPath(hash));
+        try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    size += Long.parseLong(line.substring(line.indexOf(' ') + 1));
+                }
+            }
+        }
+        return size;
+    }
+
+    /*
+     * Puts the object with its chunks into the other store, as hard links where the file system allows.
+     */
+    public void copyInto(@NotNull String hash, @NotNull MyGitObjectStore target) throws IOException {
+        if (!target.contains(hash)) {
+            copyObjectInto(hash, target, true);
+        }
+    }
+
+    /*
+     * Fetches the promised objects among the given ones, a pool of threads fetches them side by side.
+     */
+    public void prefetch(@NotNull Collection<String> hashes, int threads) throws GitException {
+        if (backing == null) {
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (String hash : new LinkedHashSet<>(hashes)) {
+            if (!isPresent(hash) && backing.contains(hash)) {
+                tasks.add(() -> {
+                    fetchFromBacking(hash);
+                    return null;
+                });
+            }
+        }
+        if (tasks.isEmpty()) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GitException("Fetch interrupted", e);
+        } catch (ExecutionException e) {
+            throw new GitException("Can't fetch objects from the backing store", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /*
+     * Deletes fetched objects, the least recently used first, until the store takes about the given
+     * number of bytes. Only objects the backing store still has are deleted, so they can be fetched again.
+     * A chunked object frees its chunks unless another object kept here shares them.
+     */
+    public void evict(long limit) throws GitException {
+        if (backing == null || stats == null || stats.storedBytes <= limit) {
+            return;
+        }
+        try {
+            List<Path> fetched = new ArrayList<>();
+            for (String name : listNames(filesDir)) {
+                if (backing.contains(toHash(name))) {
+                    fetched.add(filesDir.resolve(name));
+                }
+            }
+            Map<Path, FileTime> used = new HashMap<>();
+            for (Path path : fetched) {
+                used.put(path, Files.getLastModifiedTime(path));
+            }
+            fetched.sort(Comparator.comparing(used::get));
+            long left = stats.storedBytes;
+            boolean manifests = false;
+            for (Path path : fetched) {
+                if (left <= limit) {
+                    break;
+                }
+                String name = path.getFileName().toString();
+                String hash = toHash(name);
+                if (name.endsWith(MANIFEST_SUFFIX)) {
+                    left -= Files.size(path) + size(hash);
+                    manifests = true;
+                } else {
+                    left -= Files.size(path);
+                }
+                delete(hash);
+            }
+            if (manifests) {
+                deleteUnusedChunks(List.of());
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't evict objects", e);
+        }
+    }
+
+    private void copyObjectInto(String hash, MyGitObjectStore target, boolean link) throws IOException {
+        if (isChunked(hash)) {
+            Files.createDirectories(target.chunksDir);
+            for (String chunk : readManifest(hash)) {
+                Path targetChunk = target.chunksDir.resolve(chunk);
+                if (!Files.exists(targetChunk) && copyFile(getChunkPath(chunk), targetChunk, link)) {
+                    target.countCopiedChunk(Files.size(targetChunk));
+                }
+            }
+            Path manifest = find(store -> store.getManifestPath(hash));
+            if (copyFile(manifest, target.getManifestPath(hash), link)) {
+                target.countCopied(hash, size(hash), Files.size(manifest));
+            }
+        } else {
+            Path object = getObjectPath(hash);
+            if (copyFile(object, target.filesDir.resolve(hash), link)) {
+                target.countCopied(hash, Files.size(object), Files.size(object));
+            }
+        }
+    }
+
+    // Objects a partial store gets from elsewhere are fetched, they are counted apart as well
+    private void countCopied(String hash, long size, long storedSize) {
+        if (stats != null) {
+            stats.addObject(hash, size, storedSize);
+        }
+        if (backing != null) {
+            synchronized (this) {
+                fetched.addObject(hash, size, storedSize);
+            }
+        }
+    }
+
+    private void countCopiedChunk(long size) {
+        if (stats != null) {
+            stats.addChunk(size);
+        }
+        if (backing != null) {
+            synchronized (this) {
+                fetched.addChunk(size);
+            }
+        }
+    }
+
+    // Bytes the object takes in this store itself, for a chunked one the manifest
+    public long getStoredSize(@NotNull String hash) throws IOException {
+        Path object = filesDir.resolve(hash);
+        return Files.exists(object) ? Files.size(object) : Files.size(getManifestPath(hash));
+    }
+
+    // Time the object kept in this store itself was last written or used, in milliseconds
+    public long getModifiedTime(@NotNull String hash) throws IOException {
+        Path object = filesDir.resolve(hash);
+        return Files.getLastModifiedTime(Files.exists(object) ? object : getManifestPath(hash)).toMillis();
+    }
+
+    public long getChunkSize(@NotNull String hash) throws IOException {
+        return Files.size(getChunkPath(hash));
+    }
+
+    /*
+     * Chunks of a deleted manifest stay in the store until deleteUnusedChunks, other versions of the file usually share them.
+     * Objects of alternates are never deleted.
+     */
+    public void delete(@NotNull String hash) throws GitException {
+        try {
+            Path object = filesDir.resolve(hash);
+            Path manifest = getManifestPath(hash);
+            if (stats != null && Files.exists(object)) {
+                long size = Files.size(object);
+                stats.removeObject(hash, size, size);
+            } else if (stats != null && Files.exists(manifest)) {
+                stats.removeObject(hash, size(hash), Files.size(manifest));
+            }
+            Files.deleteIfExists(object);
+            Files.deleteIfExists(manifest);
+        } catch (IOException e) {
+            throw new GitException("Can't delete file from myGit repository", e);
+        }
+    }
+
+    public @NotNull List<String> readManifest(@NotNull String hash) throws IOException {
+        fetch(hash);
+        Path manifest = find(store -> store.getManifestPath(hash));
+        return readManifestFile(manifest == null ? getManifestPath(hash) : manifest);
+    }
+
+    private static List<String> readManifestFile(Path manifest) throws IOException {
+        List<String> chunks = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    chunks.add(line.substring(0, line.indexOf(' ')));
+                }
+            }
+        }
+        return chunks;
+    }
+
+    private boolean isPresent(String hash) {
+        return find(store -> store.filesDir.resolve(hash)) != null || find(store -> store.getManifestPath(hash)) != null;
+    }
+
+    /*
+     * Brings a promised object in from the backing store. An object fetched before is marked
+     * as just used instead, eviction goes by the modification time.
+     */
+    private void fetch(String hash) throws IOException {
+        if (backing == null) {
+            return;
+        }
+        if (!touch(hash) && !isPresent(hash) && backing.contains(hash)) {
+            fetchFromBacking(hash);
+        }
+    }
+
+    /*
+     * A fetched object is a copy: a hard link would free nothing when it is evicted,
+     * and touching it would change the time of the backing file.
+     */
+    private void fetchFromBacking(String hash) throws IOException {
+        backing.copyObjectInto(hash, this, false);
+        touch(hash);
+    }
+
+    // False when the object is not kept in this store itself
+    private boolean touch(String hash) throws IOException {
+        Path object = filesDir.resolve(hash);
+        Path local = Files.exists(object) ? object : getManifestPath(hash);
+        if (!Files.exists(local)) {
+            return false;
+        }
+        Files.setLastModifiedTime(local, FileTime.fromMillis(System.currentTimeMillis()));
+        return true;
+    }
+
+    // An object stored again may be staged for a commit once more, gc takes it for a new one
+    private void freshen(String hash) {
+        try {
+            touch(hash);
+        } catch (IOException ignored) {
+            // It is kept at least until the grace period of the first write ends
+        }
+    }
+
+    private void fetchUnchecked(String hash) {
+        try {
+            fetch(hash);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't fetch object " + hash, e);
+        }
+    }
+
+    /*
+     * Deletes the chunks no manifest of this store refers to and returns how many there were.
+     * Stores reading this one as an alternate list its chunks in their own manifests, they are given as borrowers.
+     */
+    public int deleteUnusedChunks(@NotNull Collection<MyGitObjectStore> borrowers) throws IOException {
+        Set<String> used = new HashSet<>();
+        List<MyGitObjectStore> stores = new ArrayList<>(borrowers);
+        stores.add(this);
+        for (MyGitObjectStore store : stores) {
+            for (String name : listNames(store.filesDir)) {
+                if (name.endsWith(MANIFEST_SUFFIX)) {
+                    used.addAll(readManifestFile(store.filesDir.resolve(name)));
+                }
+            }
+        }
+        int deleted = 0;
+        for (String chunk : listChunks()) {
+            if (!used.contains(chunk)) {
+                Path path = chunksDir.resolve(chunk);
+                long size = Files.size(path);
+                Files.delete(path);
+                deleted++;
+                if (stats != null) {
+                    stats.removeChunk(size);
+                }
+            }
+        }
+        return deleted;
+    }
+
+    private static String toHash(String name) {
+        return name.endsWith(MANIFEST_SUFFIX) ? name.substring(0, name.length() - MANIFEST_SUFFIX.length()) : name;
+    }
+
+    private static List<String> listNames(Path dir) throws IOException {
+        List<String> names = new ArrayList<>();
+        if (!Files.isDirectory(dir)) {
+            return names;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (!name.startsWith(TEMP_PREFIX)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    private Path getManifestPath(String hash) {
+        return filesDir.resolve(hash + MANIFEST_SUFFIX);
+    }
+
+    private Path getChunkPath(String hash) {
+        Path path = find(store -> store.chunksDir == null ? null : store.chunksDir.resolve(hash));
+        return path == null ? chunksDir.resolve(hash) : path;
+    }
+
+    // The first existing file among the candidates in this store and its alternates
+    private Path find(Function<MyGitObjectStore, Path> candidate) {
+        Path path = candidate.apply(this);
+        if (path != null && Files.exists(path)) {
+            return path;
+        }
+        for (MyGitObjectStore alternate : alternates) {
+            path = alternate.find(candidate);
+            if (path != null) {
+                return path;
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Cuts the file into chunks and stores the ones which are not in the store yet.
+     * The manifest, one "<chunk hash> <length>" line per chunk, is written to out.
+     */
+    private void storeChunks(FileChannel in, FileChannel out, Hasher hasher) throws IOException {
+        long size = in.size();
+        long position = 0;
+        try (BufferedWriter manifest = newManifestWriter(out)) {
+            while (position < size) {
+                long windowSize = Math.min(MAPPED_WINDOW, size - position);
+                MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                cutChunks(window, position + windowSize == size, manifest, hasher);
+                position += window.position();
+            }
+        }
+    }
+
+    // Same for a stream, it is read into a buffer which always has room for a chunk of the largest size
+    private void storeChunks(InputStream in, long length, FileChannel out, Hasher hasher) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, 2 * chunker.getMaxSize()));
+        long left = length;
+        try (BufferedWriter manifest = newManifestWriter(out)) {
+            while (left > 0 || buffer.position() > 0) {
+                while (left > 0 && buffer.hasRemaining()) {
+                    int read = in.read(buffer.array(), buffer.position(), (int) Math.min(buffer.remaining(), left));
+                    if (read < 0) {
+                        throw new EOFException("Stream ended before the end of the object");
+                    }
+                    buffer.position(buffer.position() + read);
+                    left -= read;
+                }
+                buffer.flip();
+                cutChunks(buffer, left == 0, manifest, hasher);
+                buffer.compact();
+            }
+        }
+    }
+
+    private BufferedWriter newManifestWriter(FileChannel out) throws IOException {
+        Files.createDirectories(chunksDir);
+        return new BufferedWriter(Channels.newWriter(out, StandardCharsets.UTF_8));
+    }
+
+    /*
+     * Stores the chunks cut from the window and lists them in the manifest, the window position is moved past them.
+     * A chunk which may continue past the window is left for the next one unless this window is the last.
+     * The hasher is null when the hash of the whole content is known already.
+     */
+    private void cutChunks(ByteBuffer window, boolean last, BufferedWriter manifest, Hasher hasher) throws IOException {
+        while (window.hasRemaining() && (last || window.remaining() >= chunker.getMaxSize())) {
+            int length = chunker.nextChunkLength(window);
+            ByteBuffer chunk = window.slice();
+            chunk.limit(length);
+            window.position(window.position() + length);
+            if (hasher != null) {
+                hasher.update(chunk.duplicate());
+            }
+            manifest.write(storeChunk(chunk) + " " + length);
+            manifest.newLine();
+        }
+    }
+
+    private String publishManifest(Path temp, String hash, long size) throws IOException {
+        long manifestSize = Files.size(temp);
+        if (publish(temp, hash, getManifestPath(hash)) && stats != null) {
+            stats.addObject(hash, size, manifestSize);
+        }
+        return hash;
+    }
+
+    private String storeChunk(ByteBuffer chunk) throws IOException {
+        Hasher chunkHasher = hashFunction.newHasher();
+        chunkHasher.update(chunk.duplicate());
+        String hash = chunkHasher.finish();
+        Path target = chunksDir.resolve(hash);
+        if (Files.exists(getChunkPath(hash))) {
+            return hash;
+        }
+        int length = chunk.remaining();
+        Path temp = MyGitFiles.createTempFile(chunksDir, TEMP_PREFIX, null);
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            writeFully(out, chunk);
+        } catch (IOException e) {
+            deleteQuietly(temp);
+            throw e;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            if (stats != null) {
+                stats.addChunk(length);
+            }
+        } catch (FileAlreadyExistsException e) {
+            Files.delete(temp);
+        }
+        return hash;
+    }
+
+    /*
+     * A hard link where asked for and the file system allows, a copy otherwise.
+     * False when the target was already there, files of one hash have the same content.
+     */
+    private static boolean copyFile(Path existing, Path target, boolean link) throws IOException {
+        if (link) {
+            try {
+                Files.createLink(target, existing);
+                return true;
+            } catch (FileAlreadyExistsException e) {
+                return false;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // Copied below
+            }
+        }
+        // The copy goes under a temporary name, so the target never has a partial file
+        Path temp = MyGitFiles.createTempFile(target.getParent(), TEMP_PREFIX, null);
+        try {
+            Files.copy(existing, temp, StandardCopyOption.REPLACE_EXISTING);
+            try {
+                // Unlike a rename, a link fails when a concurrent fetch put the file there first
+                Files.createLink(target, temp);
+            } catch (FileAlreadyExistsException e) {
+                return false;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return true;
+        } finally {
+            deleteQuietly(temp);
+        }
+    }
+
+    // Reads the file window after window, a window is mapped when the previous one is used up
+    private static class MappedChannel implements ReadableByteChannel {
+        private final FileChannel file;
+        private final long size;
+        private long position = 0;
+        private MappedByteBuffer window;
+
+        private MappedChannel(FileChannel file) throws IOException {
+            this.file = file;
+            size = file.size();
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            if (!file.isOpen()) {
+                throw new ClosedChannelException();
+            }
+            if (window == null || !window.hasRemaining()) {
+                if (position == size) {
+                    return -1;
+                }
+                window = file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_WINDOW, size - position));
+            }
+            int length = Math.min(dst.remaining(), window.remaining());
+            ByteBuffer part = window.slice();
+            part.limit(length);
+            dst.put(part);
+            window.position(window.position() + length);
+            position += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return file.isOpen();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            window = null;
+            file.close();
+        }
+    }
+
+    private static void transfer(Path source, WritableByteChannel out) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    // False when the object was already stored
+    private boolean publish(Path temp, String hash, Path target) throws IOException {
+        if (contains(hash)) {
+            Files.delete(temp);
+            freshen(hash);
+            return false;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            Files.delete(temp);
+            return false;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static void deleteQuietly(Path path) {
+        if (path == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package ru.hse.fmcs;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+
+/*
+ * Machine-readable output of status and log, written through one buffered writer.
+ *
+ * --porcelain: a line per entry. Status entries are "XY <path>", renames and copies "XY <from> -> <path>",
+ *     X is the change in the index and Y in the working directory: A added, M modified, D removed, R renamed,
+ *     C copied, ?? for files which are not tracked. Commits are tab separated hash, parent, date, author,
+ *     branch and message, backslashes, tabs and line breaks in them are escaped.
+ * -z: the same with entries ended by a zero byte instead of a line break and nothing escaped: a rename is
+ *     "XY <path>" and "<from>" and every field of a commit is ended by a zero byte.
+ * --json: a JSON object per line.
+ * Hashes absent from an entry are empty, or null in JSON. Dates are ISO-8601 in UTC.
+ */
+public class MyGitPorcelain implements Closeable {
+    public enum Format {
+        PORCELAIN, NUL, JSON
+    }
+
+    public static class StatusEntry {
+        private final String path;
+        private String from;
+        private char index = ' ';
+        private char worktree = ' ';
+        private String headHash;
+        private String indexHash;
+        private String worktreeHash;
+
+        public StatusEntry(@NotNull String path) {
+            this.path = path;
+        }
+
+        public @NotNull StatusEntry setFrom(String from) {
+            this.from = from;
+            return this;
+        }
+
+        public @NotNull StatusEntry setIndex(char index, String indexHash) {
+            this.index = index;
+            this.indexHash = indexHash;
+            return this;
+        }
+
+        public @NotNull StatusEntry setWorktree(char worktree, String worktreeHash) {
+            this.worktree = worktree;
+            this.worktreeHash = worktreeHash;
+            return this;
+        }
+
+        public @NotNull StatusEntry setHeadHash(String headHash) {
+            this.headHash = headHash;
+            return this;
+        }
+    }
+
+    private final Format format;
+    private final Writer writer;
+    private final JsonGenerator json;
+
+    public MyGitPorcelain(@NotNull OutputStream out, @NotNull Format format) throws IOException {
+        this.format = format;
+        writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), MyGitHashFunction.BUFFER_SIZE);
+        json = format == Format.JSON ? new JsonFactory().createGenerator(writer) : null;
+        if (json != null) {
+            // Objects are ended by line breaks rather than separated by spaces
+            json.setPrettyPrinter(new MinimalPrettyPrinter(""));
+        }
+    }
+
+    /*
+     * Removes the output options from the arguments. Null when there are none and the output is for people.
+     */
+    public static Format parseFormat(@NotNull List<String> arguments) {
+        Format format = null;
+        boolean nul = false;
+        for (Iterator<String> iterator = arguments.iterator(); iterator.hasNext(); ) {
+            String argument = iterator.next();
+            if (argument.equals("--porcelain")) {
+                format = format == null ? Format.PORCELAIN : format;
+            } else if (argument.equals("-z")) {
+                nul = true;
+            } else if (argument.equals("--json")) {
+                format = Format.JSON;
+            } else {
+                continue;
+            }
+            iterator.remove();
+        }
+        return nul && format != Format.JSON ? Format.NUL : format;
+    }
+
+    public void status(@NotNull StatusEntry entry) throws IOException {
+        if (format == Format.JSON) {
+            json.writeStartObject();
+            json.writeStringField("path", entry.path);
+            json.writeStringField("from", entry.from);
+            json.writeStringField("index", String.valueOf(entry.index));
+            json.writeStringField("worktree", String.valueOf(entry.worktree));
+            json.writeStringField("headHash", entry.headHash);
+            json.writeStringField("indexHash", entry.indexHash);
+            json.writeStringField("worktreeHash", entry.worktreeHash);
+            json.writeEndObject();
+            json.writeRaw('\n');
+            return;
+        }
+        writer.write(entry.index);
+        writer.write(entry.worktree);
+        writer.write(' ');
+        if (format == Format.NUL) {
+            writer.write(entry.path);
+            writer.write(0);
+            if (entry.from != null) {
+                writer.write(entry.from);
+                writer.write(0);
+            }
+        } else {
+            if (entry.from != null) {
+                writer.write(entry.from);
+                writer.write(" -> ");
+            }
+            writer.write(entry.path);
+            writer.write('\n');
+        }
+    }
+
+    public void commit(@NotNull String hash, String parent, @NotNull Date date, String author, String branch,
+                       @NotNull String message) throws IOException {
+        String time = date.toInstant().toString();
+        if (format == Format.JSON) {
+            json.writeStartObject();
+            json.writeStringField("hash", hash);
+            json.writeStringField("parent", parent);
+            json.writeStringField("date", time);
+            json.writeStringField("author", author);
+            json.writeStringField("branch", branch);
+            json.writeStringField("message", message);
+            json.writeEndObject();
+            json.writeRaw('\n');
+            return;
+        }
+        String[] fields = {hash, parent, time, author, branch, message};
+        for (int i = 0; i < fields.length; ++i) {
+            String field = fields[i] == null ? "" : fields[i];
+            if (format == Format.NUL) {
+                writer.write(field);
+                writer.write(0);
+            } else {
+                writer.write(escape(field));
+                writer.write(i + 1 < fields.length ? '\t' : '\n');
+            }
+        }
+    }
+
+    // Flushes the output, which is left open
+    @Override
+    public void close() throws IOException {
+        if (json != null) {
+            json.flush();
+        }
+        writer.flush();
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+}
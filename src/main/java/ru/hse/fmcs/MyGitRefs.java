@@ -0,0 +1,124 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Branches: names pointing to commits, kept in myGit/packed-refs.
+ * The file is a journal of "<hash> <name>" and "- <name>" lines, so creating, moving and removing
+ * a branch appends one line. It is rewritten with only the live branches when the journal
+ * becomes much longer than their number. Branches keep the order in which they were created.
+ */
+public class MyGitRefs {
+    private static final String DELETED = "-";
+    private static final int MIN_COMPACTION_SIZE = 1024;
+
+    private final Path path;
+    private final Map<String, String> branches = new LinkedHashMap<>(); // <Branch name, head commit>
+    private int journalSize = 0;
+
+    public MyGitRefs(@NotNull Path path) {
+        this.path = path;
+    }
+
+    public void load() throws GitException {
+        branches.clear();
+        journalSize = 0;
+        if (!Files.exists(path)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space < 0) {
+                    continue;
+                }
+                String hash = line.substring(0, space);
+                String name = line.substring(space + 1);
+                if (hash.equals(DELETED)) {
+                    branches.remove(name);
+                } else {
+                    branches.put(name, hash);
+                }
+                journalSize++;
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't read branches", e);
+        }
+    }
+
+    public String get(@NotNull String name) {
+        return branches.get(name);
+    }
+
+    public boolean contains(@NotNull String name) {
+        return branches.containsKey(name);
+    }
+
+    public @NotNull Map<String, String> getBranches() {
+        return Collections.unmodifiableMap(branches);
+    }
+
+    public void set(@NotNull String name, @NotNull String hash) throws GitException {
+        if (name.isEmpty() || name.contains(" ") || name.contains("\n")) {
+            throw new GitException("Wrong branch name '" + name + "'");
+        }
+        if (hash.equals(branches.get(name))) {
+            return;
+        }
+        branches.put(name, hash);
+        append(hash + " " + name);
+    }
+
+    public void delete(@NotNull String name) throws GitException {
+        if (branches.remove(name) != null) {
+            append(DELETED + " " + name);
+        }
+    }
+
+    /*
+     * Replaces all branches at once, used when the whole set comes from elsewhere.
+     */
+    public void setAll(@NotNull Map<String, String> newBranches) throws GitException {
+        branches.clear();
+        branches.putAll(newBranches);
+        compact();
+    }
+
+    private void append(String line) throws GitException {
+        try {
+            Files.writeString(path, line + "\n", StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            throw new GitException("Can't update branches", e);
+        }
+        if (++journalSize > Math.max(MIN_COMPACTION_SIZE, 2 * branches.size())) {
+            compact();
+        }
+    }
+
+    private void compact() throws GitException {
+        try {
+            Path temp = MyGitFiles.createTempFile(path.getParent(), "packed-refs", null);
+            try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                for (var entry : branches.entrySet()) {
+                    writer.write(entry.getValue() + " " + entry.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            journalSize = branches.size();
+        } catch (IOException e) {
+            throw new GitException("Can't update branches", e);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Rename and copy detection between removed and added files.
+ *
+ * Exact renames and copies are found through maps from content hash to paths. For the rest every
+ * file gets a MinHash sketch of its content, split like lines but at most 64 bytes per piece.
+ * The share of equal minimums of two sketches estimates how similar the files are. Sketches of stored
+ * objects never change, they are computed once and cached by object hash. Sketches are cut into bands
+ * and only files sharing a band with an added file are compared with it, so large change sets don't
+ * cost a comparison of every pair.
+ */
+public class MyGitRenames {
+    public static final int MIN_SIMILARITY = 50; // Percent
+    private static final int SKETCH_SIZE = 64;
+    private static final int BAND_SIZE = 2;
+    private static final int MAX_PIECE = 64;
+    private static final long[] SEEDS = createSeeds(); // One hash function of the sketch per seed
+
+    public interface Source {
+        InputStream open() throws IOException;
+    }
+
+    public static class Rename {
+        private final Path from;
+        private final Path to;
+        private final int similarity;
+        private final boolean copy;
+
+        private Rename(Path from, Path to, int similarity, boolean copy) {
+            this.from = from;
+            this.to = to;
+            this.similarity = similarity;
+            this.copy = copy;
+        }
+
+        public @NotNull Path getFrom() {
+            return from;
+        }
+
+        public @NotNull Path getTo() {
+            return to;
+        }
+
+        public int getSimilarity() {
+            return similarity;
+        }
+
+        public boolean isCopy() {
+            return copy;
+        }
+    }
+
+    private static class Candidate {
+        private final Path from;
+        private final Path to;
+        private final int similarity;
+
+        private Candidate(Path from, Path to, int similarity) {
+            this.from = from;
+            this.to = to;
+            this.similarity = similarity;
+        }
+    }
+
+    private final MyGitObjectStore objects;
+    private final MyGitCache sketches;
+
+    public MyGitRenames(@NotNull MyGitObjectStore objects, @NotNull Path sketchesDir) {
+        this.objects = objects;
+        this.sketches = new MyGitCache(sketchesDir);
+    }
+
+    // Sketches of objects deleted from the store, returns how many there were
+    public int deleteUnusedSketches() throws IOException {
+        return sketches.deleteIf(hash -> !objects.contains(hash));
+    }
+
+    /*
+     * Pairs added files, <path, content hash>, with removed ones. An added file which is not a rename
+     * but has the content of one of the unchanged files is a copy of it. Matched paths are removed from
+     * both maps. Added files which are not stored objects are read through addedSource.
+     */
+    public @NotNull List<Rename> detect(@NotNull Map<Path, String> removed, @NotNull Map<Path, String> added,
+                                        @NotNull Map<Path, String> unchanged, @NotNull Map<Path, Source> addedSource)
+            throws GitException {
+        List<Rename> renames = new ArrayList<>();
+        if (added.isEmpty()) {
+            return renames;
+        }
+        Map<String, Deque<Path>> removedByHash = invert(removed);
+        Map<String, Deque<Path>> unchangedByHash = invert(unchanged);
+        for (Path path : new TreeSet<>(added.keySet())) {
+            String hash = added.get(path);
+            Deque<Path> sources = removedByHash.get(hash);
+            if (sources != null && !sources.isEmpty()) {
+                Path from = sources.poll();
+                renames.add(new Rename(from, path, 100, false));
+                removed.remove(from);
+                added.remove(path);
+            } else if (unchangedByHash.containsKey(hash)) {
+                renames.add(new Rename(unchangedByHash.get(hash).peek(), path, 100, true));
+                added.remove(path);
+            }
+        }
+        if (!removed.isEmpty() && !added.isEmpty()) {
+            findSimilar(removed, added, addedSource, renames);
+        }
+        renames.sort(Comparator.comparing(Rename::getTo));
+        return renames;
+    }
+
+    private void findSimilar(Map<Path, String> removed, Map<Path, String> added, Map<Path, Source> addedSource,
+                             List<Rename> renames) throws GitException {
+        Map<Path, long[]> removedSketches = new HashMap<>();
+        Map<Long, List<Path>> buckets = new HashMap<>();
+        for (var entry : removed.entrySet()) {
+            long[] sketch = getSketch(entry.getValue(), () -> objects.newInputStream(entry.getValue()));
+            if (sketch == null) {
+                continue;
+            }
+            removedSketches.put(entry.getKey(), sketch);
+            for (int band = 0; band < SKETCH_SIZE / BAND_SIZE; ++band) {
+                buckets.computeIfAbsent(bandKey(sketch, band), key -> new ArrayList<>()).add(entry.getKey());
+            }
+        }
+        List<Candidate> candidates = new ArrayList<>();
+        for (var entry : added.entrySet()) {
+            Source source = addedSource.getOrDefault(entry.getKey(), () -> objects.newInputStream(entry.getValue()));
+            long[] sketch = getSketch(entry.getValue(), source);
+            if (sketch == null) {
+                continue;
+            }
+            Set<Path> compared = new HashSet<>();
+            for (int band = 0; band < SKETCH_SIZE / BAND_SIZE; ++band) {
+                for (Path from : buckets.getOrDefault(bandKey(sketch, band), List.of())) {
+                    if (compared.add(from)) {
+                        int similarity = similarity(removedSketches.get(from), sketch);
+                        if (similarity >= MIN_SIMILARITY) {
+                            candidates.add(new Candidate(from, entry.getKey(), similarity));
+                        }
+                    }
+                }
+            }
+        }
+        // The most similar pairs first, each file takes part in one rename at most
+        candidates.sort(Comparator.comparingInt((Candidate candidate) -> -candidate.similarity)
+                .thenComparing(candidate -> candidate.to).thenComparing(candidate -> candidate.from));
+        for (Candidate candidate : candidates) {
+            if (removed.containsKey(candidate.from) && added.containsKey(candidate.to)) {
+                renames.add(new Rename(candidate.from, candidate.to, candidate.similarity, false));
+                removed.remove(candidate.from);
+                added.remove(candidate.to);
+            }
+        }
+    }
+
+    private static Map<String, Deque<Path>> invert(Map<Path, String> files) {
+        Map<String, Deque<Path>> result = new HashMap<>();
+        for (Path path : new TreeSet<>(files.keySet())) {
+            result.computeIfAbsent(files.get(path), hash -> new ArrayDeque<>()).add(path);
+        }
+        return result;
+    }
+
+    private static long bandKey(long[] sketch, int band) {
+        long key = band;
+        for (int i = band * BAND_SIZE; i < (band + 1) * BAND_SIZE; ++i) {
+            key = mix(key * 31 + sketch[i]);
+        }
+        return key;
+    }
+
+    private static int similarity(long[] first, long[] second) {
+        int equal = 0;
+        for (int i = 0; i < SKETCH_SIZE; ++i) {
+            if (first[i] == second[i]) {
+                equal++;
+            }
+        }
+        return equal * 100 / SKETCH_SIZE;
+    }
+
+    /*
+     * Null for empty content. Sketches of stored objects are cached, a concurrent writer
+     * of the same sketch writes the same bytes.
+     */
+    private long[] getSketch(String hash, Source source) throws GitException {
+        boolean stored = objects.contains(hash);
+        // An entry starts with whether the content is empty, empty content is read as a sketch of no minimums
+        long[] cached = !stored ? null : sketches.read(hash, in -> {
+            long[] sketch = new long[in.readBoolean() ? SKETCH_SIZE : 0];
+            for (int i = 0; i < sketch.length; ++i) {
+                sketch[i] = in.readLong();
+            }
+            return sketch;
+        });
+        if (cached != null) {
+            return cached.length == 0 ? null : cached;
+        }
+        long[] sketch;
+        try (InputStream in = source.open()) {
+            sketch = computeSketch(in);
+        } catch (IOException e) {
+            throw new GitException("Can't read file", e);
+        }
+        if (stored) {
+            sketches.write(hash, out -> {
+                out.writeBoolean(sketch != null);
+                for (int i = 0; sketch != null && i < SKETCH_SIZE; ++i) {
+                    out.writeLong(sketch[i]);
+                }
+            });
+        }
+        return sketch;
+    }
+
+    private static long[] computeSketch(InputStream in) throws IOException {
+        long[] sketch = new long[SKETCH_SIZE];
+        Arrays.fill(sketch, Long.MAX_VALUE);
+        byte[] buffer = new byte[MyGitHashFunction.BUFFER_SIZE];
+        long piece = 0;
+        int pieceLength = 0;
+        boolean empty = true;
+        int read;
+        while ((read = in.read(buffer)) >= 0) {
+            for (int i = 0; i < read; ++i) {
+                piece = piece * 0x100000001b3L + (buffer[i] & 0xff) + 1;
+                pieceLength++;
+                if (buffer[i] == '\n' || pieceLength == MAX_PIECE) {
+                    addPiece(sketch, piece);
+                    piece = 0;
+                    pieceLength = 0;
+                    empty = false;
+                }
+            }
+        }
+        if (pieceLength > 0) {
+            addPiece(sketch, piece);
+            empty = false;
+        }
+        return empty ? null : sketch;
+    }
+
+    // The same piece repeated counts once, as in a set
+    private static void addPiece(long[] sketch, long piece) {
+        long hash = mix(piece);
+        for (int i = 0; i < SKETCH_SIZE; ++i) {
+            long value = mix(hash ^ SEEDS[i]);
+            if (value < sketch[i]) {
+                sketch[i] = value;
+            }
+        }
+    }
+
+    private static long[] createSeeds() {
+        long[] seeds = new long[SKETCH_SIZE];
+        long seed = 0;
+        for (int i = 0; i < SKETCH_SIZE; ++i) {
+            seed += 0x9e3779b97f4a7c15L;
+            seeds[i] = mix(seed);
+        }
+        return seeds;
+    }
+
+    // Finalizer of SplitMix64
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -1,72 +1,180 @@
 package ru.hse.fmcs;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectWriter;
-import org.apache.commons.codec.digest.DigestUtils;
+import com.fasterxml.jackson.databind.*;
+import com.fasterxml.jackson.databind.module.SimpleModule;
 import org.checkerframework.checker.units.qual.A;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 
+import static ru.hse.fmcs.MyGitFiles.TEMP_PREFIX;
+
 public class MyGitRepository {
     // Using classes
     private PrintStream output;
     private MyGitIndex index;
+    private MyGitObjectStore objects;
+    private MyGitStats stats; // null in repositories where counters were never kept, they are counted on demand
+    private String promisor; // myGit directory a partial clone fetches objects from, null in a full repository
+    private long cacheLimit; // Bytes a partial clone keeps of fetched objects, 0 for no limit
 
     // Graph of commits
     private class Node {
         public MyGitCommit commit;
         public Node parent;
+        private int depth = -1; // Number of ancestors, computed lazily
 
         public Node(MyGitCommit commit) {
             this.commit = commit;
             this.parent = null;
         }
+
+        public int getDepth() {
+            if (depth < 0) {
+                Deque<Node> stack = new ArrayDeque<>();
+                Node nd = this;
+                while (nd != null && nd.depth < 0) {
+                    stack.push(nd);
+                    nd = nd.parent;
+                }
+                int d = nd == null ? -1 : nd.depth;
+                while (!stack.isEmpty()) {
+                    stack.pop().depth = ++d;
+                }
+            }
+            return depth;
+        }
     }
 
     private Node curNode;
     private Map<String, Node> graph = new HashMap<>(); // <hash commit, Node>
+    private final MyGitCommitIndex commitIndex;
+    private final MyGitRefs refs;
+    private final MyGitWorktrees worktrees;
 
     // Meta information about git repository
-    private class MetaInf {
+    private static class MetaInf {
         public Date dateInitialization;
         public String headCommitHash;
-        public Map<String, String> branches; // <Branch name, headCommit>
+        public String currentBranch; // null when head is detached
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Map<String, String> branches; // Only in repositories created before branches moved to packed-refs
+        public String hashFunction; // Absent in repositories created before it was configurable
+        public Long chunkingThreshold; // Files bigger than this are stored as content-defined chunks
+        public Integer chunkTargetSize;
+
+        public MetaInf() {
+        }
 
-        public MetaInf(Date date) {
+        public MetaInf(Date date, String hashFunction) {
             dateInitialization = date;
-            branches = new LinkedHashMap<>();
+            this.hashFunction = hashFunction;
         }
     }
 
     MetaInf metainf;
+    private String stamp; // Identity of metainf.json and shared files as this process last saw them
+    private String metainfJson; // Metainf as this process last read or wrote it
+    private String statsStamp; // Identity of stats.json as this process last read or wrote it
+    private boolean tempFilesDeleted; // Set by the first write of this process
+
+    private interface GitCommand {
+        void run() throws GitException;
+    }
+
+    private final MyGitLock lock;
+    private final MyGitLock fetchLock;
 
     // Other information
+    private static final String ALTERNATES_FILE = "alternates"; // myGit directories whose objects this repository reads
+    private static final String PROMISOR_FILE = "promisor"; // Backing myGit directory and cache limit of a partial clone
+    private static final String BORROWERS_FILE = "borrowers"; // myGit directories of clones reading objects of this one
+    private static final long GC_EXPIRE_MILLIS = 14L * 24 * 60 * 60 * 1000; // Unreferenced objects younger than this are kept
+    private static final int FETCH_THREADS = 8; // Objects fetched side by side from the backing store
+    private static final int NEGOTIATION_BATCH = 64; // Commits offered to the other repository at once
     private final Path directory;
     private final Path myGitDir;
+    private final Path commonDir; // myGit directory of the main worktree, shared data live there
     private final Path filesDir;
+    private final Path chunksDir;
     private final Path commitsDir;
+    private final Path sketchesDir; // Cached similarity sketches of objects, see MyGitRenames
+    private final Path blameDir; // Cached line attribution of file versions, see MyGitBlame
     private final Path metainfPath;
+    private final Path statsPath;
+    private final Path shallowPath;
+    private final Set<String> shallow = new HashSet<>(); // Commits whose parents were left out of a shallow repository
+    private final Path sparseCheckoutPath;
+    private MyGitSparseCheckout cone; // null when the whole tree is checked out
     private final ObjectMapper mapper;
     private final ObjectWriter writer;
+    private boolean absolutePathsRead; // Set when a commit with absolute paths was deserialized
+    private final Set<String> absolutePathCommits = new HashSet<>();
 
     public MyGitRepository(@NotNull String directory) throws GitException {
         output = System.out;
         index = new MyGitIndex();
         this.directory = Path.of(directory);
         myGitDir = Path.of(directory + "/myGit");
-        filesDir = Path.of(myGitDir + "/files");
-        commitsDir = Path.of(myGitDir + "/commits");
+        commonDir = MyGitWorktrees.getCommonDir(myGitDir);
+        filesDir = Path.of(commonDir + "/files");
+        chunksDir = Path.of(commonDir + "/chunks");
+        commitsDir = Path.of(commonDir + "/commits");
+        sketchesDir = Path.of(commonDir + "/sketches");
+        blameDir = Path.of(commonDir + "/blame");
         metainfPath = Path.of(myGitDir + "/metainf.json");
+        statsPath = Path.of(commonDir + "/stats.json");
+        shallowPath = Path.of(commonDir + "/shallow");
+        sparseCheckoutPath = Path.of(myGitDir + "/sparse-checkout");
+        commitIndex = new MyGitCommitIndex(Path.of(commonDir + "/commit-index"));
+        refs = new MyGitRefs(Path.of(commonDir + "/packed-refs"));
+        worktrees = new MyGitWorktrees(Path.of(commonDir + "/worktrees"));
+        lock = MyGitLock.forRepository(commonDir);
+        fetchLock = MyGitLock.forFetches(commonDir);
         mapper = new ObjectMapper();
+        // Commits keep paths relative to the root, so every worktree reads them as its own files
+        Path root = this.directory;
+        Path mainRoot = commonDir.toAbsolutePath().normalize().getParent();
+        mapper.registerModule(new SimpleModule().addKeySerializer(Path.class, new JsonSerializer<Path>() {
+            @Override
+            public void serialize(Path path, JsonGenerator generator, SerializerProvider provider) throws IOException {
+                generator.writeFieldName((path.startsWith(root) ? root.relativize(path) : path).toString());
+            }
+        }).addKeyDeserializer(Path.class, new KeyDeserializer() {
+            @Override
+            public Object deserializeKey(String key, DeserializationContext context) {
+                Path path = Path.of(key);
+                if (!path.isAbsolute()) {
+                    return root.resolve(path);
+                }
+                // Commits written before paths became relative keep absolute paths of the main worktree
+                absolutePathsRead = true;
+                Path normalized = path.normalize();
+                return normalized.startsWith(mainRoot) ? root.resolve(mainRoot.relativize(normalized)) : path;
+            }
+        }));
         writer = mapper.writer(new DefaultPrettyPrinter());
     }
 
@@ -74,65 +182,486 @@ public class MyGitRepository {
         this.output = outputStream;
     }
 
-    // Git functions
+    // Git functions, read-only ones may run concurrently
     public void init() throws GitException {
+        init(Collections.emptyList());
+    }
+
+    public void init(@NotNull List<@NotNull String> arguments) throws GitException {
+        writeLocked(() -> runInit(arguments));
+    }
+
+    public void status() throws GitException {
+        status(Collections.emptyList());
+    }
+
+    public void status(@NotNull List<@NotNull String> arguments) throws GitException {
+        MyGitPorcelain.Format format = MyGitPorcelain.parseFormat(new ArrayList<>(arguments));
+        readLocked(() -> runStatus(format));
+    }
+
+    public void add(@NotNull List<@NotNull String> arguments) throws GitException {
+        writeLocked(() -> runAdd(arguments));
+    }
+
+    public void commit(String message) throws GitException {
+        writeLocked(() -> runCommit(message));
+    }
+
+    public void log(String revision) throws GitException {
+        log(revision == null ? Collections.emptyList() : List.of(revision));
+    }
+
+    public void log(@NotNull List<@NotNull String> arguments) throws GitException {
+        List<String> rest = new ArrayList<>(arguments);
+        MyGitPorcelain.Format format = MyGitPorcelain.parseFormat(rest);
+        readLocked(() -> runLog(rest.isEmpty() ? null : rest.get(0), format));
+    }
+
+    public void rm(@NotNull List<@NotNull String> arguments) throws GitException {
+        writeLocked(() -> runRm(arguments));
+    }
+
+    public void checkout(@NotNull List<@NotNull String> arguments) throws GitException {
+        if (!arguments.isEmpty() && arguments.get(0).equals("--")) {
+            // Restores worktree files only, the repository itself doesn't change
+            readLocked(() -> runCheckout(arguments));
+        } else {
+            writeLocked(() -> runCheckout(arguments));
+        }
+    }
+
+    public void reset(String toRevision) throws GitException {
+        writeLocked(() -> runReset(toRevision));
+    }
+
+    public void branchCreate(String branchName) throws GitException {
+        writeLocked(() -> runBranchCreate(branchName));
+    }
+
+    public void showBranches() throws GitException {
+        readLocked(this::runShowBranches);
+    }
+
+    public void branchRemove(String branchName) throws GitException {
+        writeLocked(() -> runBranchRemove(branchName));
+    }
+
+    public void sparseCheckout(@NotNull List<@NotNull String> arguments) throws GitException {
+        writeLocked(() -> runSparseCheckout(arguments));
+    }
+
+    public void worktree(@NotNull List<@NotNull String> arguments) throws GitException {
+        if (arguments.isEmpty() || arguments.get(0).equals("list")) {
+            readLocked(() -> runWorktree(arguments));
+        } else {
+            writeLocked(() -> runWorktree(arguments));
+        }
+    }
+
+    /*
+     * Clones the source repository into an empty destination, both paths are relative to this directory.
+     */
+    public void cloneRepository(@NotNull List<@NotNull String> arguments) throws GitException {
+        if (arguments.size() < 2) {
+            throw new GitException("Usage: clone <source> <destination> [--shared] [--depth=<n>] "
+                    + "[--filter=blob:none] [--cache-limit=<size>]");
+        }
+        MyGitRepository source = new MyGitRepository(directory.resolve(arguments.get(0)).toString());
+        source.setOutputStream(output);
+        Path target = directory.resolve(arguments.get(1)).toAbsolutePath().normalize();
+        boolean shared = arguments.contains("--shared");
+        int depth = 0;
+        boolean partial = false;
+        long limit = 0;
+        for (String argument : arguments.subList(2, arguments.size())) {
+            if (argument.equals("--filter=blob:none")) {
+                partial = true;
+            } else if (argument.startsWith("--cache-limit=")) {
+                try {
+                    limit = (long) parseSize(argument.substring("--cache-limit=".length()));
+                } catch (NumberFormatException e) {
+                    throw new GitException("Wrong clone option " + argument, e);
+                }
+            } else if (argument.startsWith("--filter=")) {
+                throw new GitException("Unknown clone filter " + argument.substring("--filter=".length()));
+            } else if (argument.startsWith("--depth=")) {
+                try {
+                    depth = Integer.parseInt(argument.substring("--depth=".length()));
+                } catch (NumberFormatException e) {
+                    throw new GitException("Wrong clone option " + argument, e);
+                }
+                if (depth < 1) {
+                    throw new GitException("Wrong clone option " + argument);
+                }
+            } else if (!argument.equals("--shared")) {
+                throw new GitException("Unknown clone option " + argument);
+            }
+        }
+        int cloneDepth = depth;
+        boolean clonePartial = partial;
+        long cacheLimit = limit;
+        source.readLocked(() -> source.cloneTo(target, shared, cloneDepth, clonePartial, cacheLimit));
+        output.printf("Repository cloned into %s\n", arguments.get(1));
+    }
+
+    public void bundle(@NotNull List<@NotNull String> arguments) throws GitException {
+        if (!arguments.isEmpty() && arguments.get(0).equals("create")) {
+            readLocked(() -> runBundle(arguments));
+        } else {
+            writeLocked(() -> runBundle(arguments));
+        }
+    }
+
+    public void push(@NotNull List<@NotNull String> arguments) throws GitException {
+        transfer(arguments, true);
+    }
+
+    public void pull(@NotNull List<@NotNull String> arguments) throws GitException {
+        transfer(arguments, false);
+    }
+
+    /*
+     * deepen <repository> <commits>
+     * Moves the boundary of a shallow repository back by the number of commits, taking them from the repository.
+     */
+    public void deepen(@NotNull List<@NotNull String> arguments) throws GitException {
+        if (arguments.size() < 2) {
+            throw new GitException("Usage: deepen <repository> <commits>");
+        }
+        int depth;
+        try {
+            depth = Integer.parseInt(arguments.get(1));
+        } catch (NumberFormatException e) {
+            throw new GitException("Wrong number of commits " + arguments.get(1), e);
+        }
+        if (depth < 1) {
+            throw new GitException("Wrong number of commits " + arguments.get(1));
+        }
+        MyGitRepository source = new MyGitRepository(directory.resolve(arguments.get(0)).toString());
+        source.setOutputStream(output);
+        String sourceDir = source.commonDir.toAbsolutePath().normalize().toString();
+        String targetDir = commonDir.toAbsolutePath().normalize().toString();
+        if (sourceDir.equals(targetDir)) {
+            throw new GitException("Can't deepen from the same repository");
+        }
+        // Repositories are locked in the same order as by push and pull
+        if (sourceDir.compareTo(targetDir) < 0) {
+            source.readLocked(() -> writeLocked(() -> runDeepen(source, depth)));
+        } else {
+            writeLocked(() -> source.readLocked(() -> runDeepen(source, depth)));
+        }
+    }
+
+    public void archive(@NotNull List<@NotNull String> arguments) throws GitException {
+        readLocked(() -> runArchive(arguments));
+    }
+
+    public void diff(@NotNull List<@NotNull String> arguments) throws GitException {
+        readLocked(() -> runDiff(arguments));
+    }
+
+    public void blame(@NotNull List<@NotNull String> arguments) throws GitException {
+        readLocked(() -> runBlame(arguments));
+    }
+
+    public void grep(@NotNull List<@NotNull String> arguments) throws GitException {
+        readLocked(() -> runGrep(arguments));
+    }
+
+    /*
+     * show <revision>:<path>
+     * Writes the file as the revision has it, neither HEAD nor the working directory change.
+     */
+    public void show(@NotNull List<@NotNull String> arguments) throws GitException {
+        int colon = arguments.isEmpty() ? -1 : arguments.get(0).indexOf(':');
+        if (colon < 0) {
+            throw new GitException("Usage: show <revision>:<path>");
+        }
+        String revision = arguments.get(0).substring(0, colon);
+        String path = arguments.get(0).substring(colon + 1);
+        readLocked(revision, () -> {
+            String hash = lookUpFile(revision, path);
+            try {
+                objects.copyTo(hash, Channels.newChannel(output));
+                output.flush();
+            } catch (IOException e) {
+                throw new GitException("Can't read " + path + " of " + revision, e);
+            }
+        });
+    }
+
+    /*
+     * Content of the file as the revision has it, the path is relative to the root of the repository.
+     * Only the shared lock is taken while the file is looked up, the channel may be read from any thread
+     * afterwards. Large files are memory-mapped. A commit given by its full hash is looked up without
+     * checking the repository for changes once this object has read it.
+     */
+    public @NotNull ReadableByteChannel openFile(@NotNull String revision, @NotNull String path) throws GitException {
+        ReadableByteChannel[] channel = new ReadableByteChannel[1];
+        readLocked(revision, () -> {
+            String hash = lookUpFile(revision, path);
+            try {
+                channel[0] = objects.newChannel(hash);
+            } catch (IOException e) {
+                throw new GitException("Can't read " + path + " of " + revision, e);
+            }
+        });
+        return channel[0];
+    }
+
+    public @NotNull InputStream newInputStream(@NotNull String revision, @NotNull String path) throws GitException {
+        return Channels.newInputStream(openFile(revision, path));
+    }
+
+    /*
+     * fast-import [<file>]
+     * Reads the stream from the file, or from the standard input without one.
+     */
+    public void fastImport(@NotNull List<@NotNull String> arguments) throws GitException {
+        writeLocked(() -> {
+            if (arguments.isEmpty()) {
+                runFastImport(System.in);
+                return;
+            }
+            try (InputStream in = Files.newInputStream(directory.resolve(arguments.get(0)))) {
+                runFastImport(in);
+            } catch (IOException e) {
+                throw new GitException("Can't read " + arguments.get(0), e);
+            }
+        });
+    }
+
+    /*
+     * Starts a commit onto the branch of contents given from Java, see MyGitCommitBuilder.
+     */
+    public @NotNull MyGitCommitBuilder newCommit(@NotNull String branch) {
+        return new MyGitCommitBuilder(this, branch);
+    }
+
+    @NotNull String commit(@NotNull MyGitCommitBuilder builder) throws GitException {
+        String[] hash = new String[1];
+        writeLocked(() -> hash[0] = runBuiltCommit(builder));
+        return hash[0];
+    }
+
+    /*
+     * stats [--verify] [--threads=<n>]
+     * Prints the counters kept up to date by the object store. --verify counts the store anew, reports
+     * counters which were wrong and saves the right ones. Counters never kept before are counted the same way.
+     */
+    public void stats(@NotNull List<@NotNull String> arguments) throws GitException {
+        boolean verify = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        for (String argument : arguments) {
+            try {
+                if (argument.equals("--verify")) {
+                    verify = true;
+                } else if (argument.startsWith("--threads=")) {
+                    threads = Integer.parseInt(argument.substring("--threads=".length()));
+                } else {
+                    throw new GitException("Unknown stats option " + argument);
+                }
+            } catch (NumberFormatException e) {
+                throw new GitException("Wrong stats option " + argument, e);
+            }
+        }
+        if (threads < 1) {
+            throw new GitException("Wrong stats option --threads=" + threads);
+        }
+        boolean recount = verify;
+        int poolSize = threads;
+        if (verify || !Files.exists(statsPath)) {
+            writeLocked(() -> runStats(recount || stats == null, poolSize));
+        } else {
+            readLocked(() -> runStats(false, poolSize));
+        }
+    }
+
+    /*
+     * gc [--prune=<seconds> | --prune=now]
+     * Deletes the objects no commit refers to, add, rm and reset leave them behind. Files staged by other
+     * processes and worktrees are known only to them, so objects written within the grace period, two weeks
+     * by default, are kept. Commits of shared and partial clones reading objects of this repository keep theirs.
+     * Chunks are deleted once no manifest here or in those clones lists them.
+     */
+    public void gc(@NotNull List<@NotNull String> arguments) throws GitException {
+        long expire = GC_EXPIRE_MILLIS;
+        for (String argument : arguments) {
+            try {
+                if (argument.equals("--prune=now")) {
+                    expire = 0;
+                } else if (argument.startsWith("--prune=")) {
+                    expire = Math.multiplyExact(Long.parseLong(argument.substring("--prune=".length())), 1000L);
+                } else {
+                    throw new GitException("Unknown gc option " + argument);
+                }
+            } catch (NumberFormatException | ArithmeticException e) {
+                throw new GitException("Wrong gc option " + argument, e);
+            }
+        }
+        if (expire < 0) {
+            throw new GitException("Wrong gc option --prune=" + expire / 1000);
+        }
+        long expireMillis = expire;
+        writeLocked(() -> runGc(System.currentTimeMillis() - expireMillis));
+    }
+
+    /*
+     * fsck [--threads=<n>] [--max-rate=<bytes per second, K, M or G suffix>]
+     * History and branches are checked under the read lock. Objects never change once written,
+     * so they are rehashed after it is released and writers are not held up by a long check.
+     */
+    public void fsck(@NotNull List<@NotNull String> arguments) throws GitException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        double maxRate = 0;
+        for (String argument : arguments) {
+            try {
+                if (argument.startsWith("--threads=")) {
+                    threads = Integer.parseInt(argument.substring("--threads=".length()));
+                } else if (argument.startsWith("--max-rate=")) {
+                    maxRate = parseSize(argument.substring("--max-rate=".length()));
+                } else {
+                    throw new GitException("Unknown fsck option " + argument);
+                }
+            } catch (NumberFormatException e) {
+                throw new GitException("Wrong fsck option " + argument, e);
+            }
+        }
+        if (threads < 1) {
+            throw new GitException("Wrong fsck option --threads=" + threads);
+        }
+        List<String> problems = new ArrayList<>();
+        MyGitObjectStore[] store = new MyGitObjectStore[1];
+        int[] commitCount = new int[1];
+        readLocked(() -> {
+            if (metainf == null) {
+                throw new GitException("Not a myGit repository: " + directory);
+            }
+            problems.addAll(checkHistory());
+            store[0] = objects;
+            commitCount[0] = graph.size();
+        });
+        MyGitFsck fsck = new MyGitFsck(store[0], output, threads, maxRate);
+        problems.addAll(fsck.checkObjects());
+        output.printf("Checked %d objects, %d chunks and %d commits\n", fsck.getObjectCount(), fsck.getChunkCount(), commitCount[0]);
+        if (problems.isEmpty()) {
+            output.println("No problems found");
+            return;
+        }
+        for (String problem : problems) {
+            output.println(problem);
+        }
+        throw new GitException("Repository is corrupted, " + problems.size() + " problems found");
+    }
+
+    public @NotNull String getRelativeRevisionFromHead(int n) throws GitException {
+        String[] result = new String[1];
+        readLocked(() -> result[0] = relativeRevisionFromHead(n));
+        return result[0];
+    }
+
+    /*
+     * The sending repository is locked for reading and the receiving one for writing.
+     * Locks of the two are always taken in the same order, so opposite transfers can't deadlock.
+     */
+    private void transfer(List<String> arguments, boolean push) throws GitException {
+        if (arguments.isEmpty()) {
+            throw new GitException("Usage: " + (push ? GitConstants.PUSH : GitConstants.PULL) + " <repository> [<branch>]");
+        }
+        MyGitRepository remote = new MyGitRepository(directory.resolve(arguments.get(0)).toString());
+        remote.setOutputStream(output);
+        MyGitRepository source = push ? this : remote;
+        MyGitRepository target = push ? remote : this;
+        GitCommand command = () -> {
+            String branch = arguments.size() > 1 ? arguments.get(1) : metainf == null ? null : metainf.currentBranch;
+            if (branch == null) {
+                throw new GitException("Head is detached, name the branch to " + (push ? "push" : "pull"));
+            }
+            source.sendBranch(target, branch, !push);
+        };
+        String sourceDir = source.commonDir.toAbsolutePath().normalize().toString();
+        String targetDir = target.commonDir.toAbsolutePath().normalize().toString();
+        if (sourceDir.equals(targetDir)) {
+            throw new GitException("Can't " + (push ? "push to" : "pull from") + " the same repository");
+        }
+        if (sourceDir.compareTo(targetDir) < 0) {
+            source.readLocked(() -> target.writeLocked(command));
+        } else {
+            target.writeLocked(() -> source.readLocked(command));
+        }
+    }
+
+    // Implementations of git functions, called under the repository lock
+    private void runInit(@NotNull List<@NotNull String> arguments) throws GitException {
+        String hashFunction = MyGitHashFunction.DEFAULT;
+        long chunkingThreshold = MyGitChunker.DEFAULT_THRESHOLD;
+        int chunkTargetSize = MyGitChunker.DEFAULT_TARGET_SIZE;
+        for (String argument : arguments) {
+            try {
+                if (argument.startsWith("--hash=")) {
+                    hashFunction = argument.substring("--hash=".length());
+                } else if (argument.startsWith("--chunk-threshold=")) {
+                    chunkingThreshold = Long.parseLong(argument.substring("--chunk-threshold=".length()));
+                } else if (argument.startsWith("--chunk-size=")) {
+                    chunkTargetSize = Integer.parseInt(argument.substring("--chunk-size=".length()));
+                } else {
+                    throw new GitException("Unknown init option " + argument);
+                }
+            } catch (NumberFormatException e) {
+                throw new GitException("Wrong init option " + argument, e);
+            }
+        }
+        try {
+            new MyGitChunker(chunkingThreshold, chunkTargetSize);
+        } catch (IllegalArgumentException e) {
+            throw new GitException("Wrong chunking configuration: " + e.getMessage(), e);
+        }
+        MyGitHashFunction.forName(hashFunction);
         try {
             boolean firstInitialize = true;
             if (isMyGitDirectory()) {
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(commitsDir)) {
-                    metainf = mapper.readValue(metainfPath.toFile(), MetaInf.class);
-                    metainf.dateInitialization = new Date();
-                    List<MyGitCommit> commits = new ArrayList<>();
-                    for (Path path : stream) {
-                        commits.add(mapper.readValue(Paths.get(path.toUri()).toFile(), MyGitCommit.class));
-                    }
-                    for (var commit : commits) {
-                        graph.put(commit.getHash(), new Node(commit));
-                    }
-                    for (var node : graph.entrySet()) {
-                        node.getValue().parent = graph.get(node.getValue().commit.getParentHash());
-                    }
-                    curNode = graph.get(metainf.headCommitHash);
-                } catch (IOException e) {
-                    throw new GitException("Can't get MyGit information", e);
-                }
+                load(true);
+                metainf.dateInitialization = new Date();
                 firstInitialize = false;
+                // Objects are already named by the hash function and cut by the chunking of the repository
+                if (!arguments.isEmpty()) {
+                    output.printf("Options %s ignored, the repository exists\n", String.join(" ", arguments));
+                }
             } else {
                 Files.createDirectories(filesDir);
                 Files.createDirectories(commitsDir);
-                metainf = new MetaInf(new Date());
-                try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
-                    for (Path path : stream) {
-                        if (path.equals(myGitDir)) {
-                            continue;
-                        }
-                        if (path.toFile().isDirectory()) {
-                            Files.walk(path).forEach(p -> {
-                                try {
-                                    index.add(path, getFileHash(path), MyGitFileMode.NEW);
-                                } catch (GitException e) {
-                                    throw new RuntimeException(e);
-                                }
-                            });
-                        } else {
-                            index.add(path, getFileHash(path), MyGitFileMode.NEW);
-                        }
+                metainf = new MetaInf(new Date(), hashFunction);
+                metainf.chunkingThreshold = chunkingThreshold;
+                metainf.chunkTargetSize = chunkTargetSize;
+                objects = createObjectStore();
+                stats = new MyGitStats();
+                objects.setStats(stats);
+                newIgnore().walk(directory, path -> {
+                    try {
+                        index.add(path, objects.store(path), MyGitFileMode.NEW);
+                    } catch (GitException e) {
+                        throw new RuntimeException(e);
                     }
-                }
+                });
                 MyGitCommit commit = new MyGitCommit("Initial commit", null, index, "master");
                 metainf.headCommitHash = commit.getHash();
-                metainf.branches.put("master", commit.getHash());
+                metainf.currentBranch = GitConstants.MASTER;
+                refs.set(GitConstants.MASTER, commit.getHash());
                 curNode = new Node(commit);
                 graph.put(commit.getHash(), curNode);
-                writer.writeValue(Path.of(commitsDir + "/" + commit.getHash() + ".json").toFile(), commit);
+                writeJson(Path.of(commitsDir + "/" + commit.getHash() + ".json"), commit);
+                commitIndex.open(graph.keySet());
+                stats.takeChanged();
+                writeJson(statsPath, stats);
             }
-            writer.writeValue(metainfPath.toFile(), metainf);
+            writeMetainf();
             if (firstInitialize) {
                 output.println("Project initialized");
             } else {
                 output.println("Project reinitialized");
             }
-        } catch (IOException | RuntimeException e) {
+        } catch (IOException | RuntimeException | GitException e) {
             String message = "Can't initialize directory";
             output.println(message);
             if (e.getClass() == RuntimeException.class) {
@@ -143,35 +672,36 @@ public class MyGitRepository {
         }
     }
 
-    public void status() throws GitException {
+    private void runStatus(MyGitPorcelain.Format format) throws GitException {
         MyGitCommit commit = curNode.commit;
-        if (!metainf.headCommitHash.equals(metainf.branches.get(commit.getBranch()))) {
+        if (isHeadDetached()) {
             output.println("Error while performing status: Head is detached");
             return;
         }
-        List<Path> untrackedNewFiles = new ArrayList<>();
-        List<Path> untrackedModifiedFiles = new ArrayList<>();
+        Map<Path, String> untrackedNewFiles = new HashMap<>();
+        Map<Path, String> untrackedModifiedFiles = new HashMap<>();
         Set<Path> untrackedDeletedFiles = new HashSet<>();
         untrackedDeletedFiles.addAll(commit.getFiles().keySet());
         untrackedDeletedFiles.addAll(index.getNewFiles().keySet());
         untrackedDeletedFiles.addAll(index.getModifiedFiles().keySet());
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
-            for (Path path : stream) {
-                if (path.equals(myGitDir)) {
-                    continue;
-                }
-                if (path.toFile().isDirectory()) {
-                    Files.walk(path).forEach(p -> {
-                        try {
-                            addFileIfUntracked(path, commit, untrackedNewFiles, untrackedModifiedFiles, untrackedDeletedFiles);
-                            untrackedDeletedFiles.remove(path);
-                        } catch (GitException e) {
-                            throw new RuntimeException(e);
-                        }
-                    });
-                } else {
+        // Removal of a file which is already staged is reported as a staged rename or not at all
+        untrackedDeletedFiles.removeAll(index.getDeletedFiles());
+        // Files outside of the sparse-checkout cone are absent on purpose
+        untrackedDeletedFiles.removeIf(path -> !isInCone(path));
+        try {
+            newIgnore().walk(directory, path -> {
+                try {
                     addFileIfUntracked(path, commit, untrackedNewFiles, untrackedModifiedFiles, untrackedDeletedFiles);
                     untrackedDeletedFiles.remove(path);
+                } catch (GitException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            // Tracked files are never ignored, the walk skipped only those which lie in ignored directories
+            for (Path path : new ArrayList<>(untrackedDeletedFiles)) {
+                if (Files.isRegularFile(path)) {
+                    untrackedDeletedFiles.remove(path);
+                    addFileIfUntracked(path, commit, untrackedNewFiles, untrackedModifiedFiles, untrackedDeletedFiles);
                 }
             }
         } catch (IOException e) {
@@ -179,31 +709,66 @@ public class MyGitRepository {
         } catch (RuntimeException e) {
             throw (GitException) e.getCause();
         }
-        String branchName = commit.getBranch();
-        output.printf("Current branch is '%s'\n", branchName);
+        // Staged renames pair files added to the index with files removed from it
+        MyGitRenames renames = new MyGitRenames(objects, sketchesDir);
+        Map<Path, String> stagedNewFiles = new HashMap<>(index.getNewFiles());
+        Map<Path, String> stagedDeletedFiles = new HashMap<>();
+        for (Path path : index.getDeletedFiles()) {
+            if (commit.containsName(path)) {
+                stagedDeletedFiles.put(path, commit.getFiles().get(path));
+            }
+        }
+        Map<Path, String> unchanged = new HashMap<>(commit.getFiles());
+        unchanged.keySet().removeAll(index.getDeletedFiles());
+        unchanged.keySet().removeAll(index.getModifiedFiles().keySet());
+        List<MyGitRenames.Rename> stagedRenames = renames.detect(stagedDeletedFiles, stagedNewFiles, unchanged, Map.of());
+        // Untracked ones pair new files in the working directory with files missing from it
+        Map<Path, String> untrackedRemoved = new HashMap<>();
+        for (Path path : untrackedDeletedFiles) {
+            String hash = index.getFileHash(path);
+            untrackedRemoved.put(path, hash != null ? hash : commit.getFiles().get(path));
+        }
+        unchanged.keySet().removeAll(untrackedDeletedFiles);
+        unchanged.keySet().removeAll(untrackedModifiedFiles.keySet());
+        Map<Path, MyGitRenames.Source> newFileSources = new HashMap<>();
+        for (Path path : untrackedNewFiles.keySet()) {
+            newFileSources.put(path, () -> Files.newInputStream(path));
+        }
+        List<MyGitRenames.Rename> untrackedRenames = renames.detect(untrackedRemoved, untrackedNewFiles, unchanged, newFileSources);
+        untrackedDeletedFiles.retainAll(untrackedRemoved.keySet());
+        if (format != null) {
+            printStatusEntries(format, commit, stagedNewFiles, stagedDeletedFiles, stagedRenames, untrackedNewFiles,
+                    untrackedModifiedFiles, untrackedDeletedFiles, untrackedRenames);
+            return;
+        }
+        output.printf("Current branch is '%s'\n", metainf.currentBranch);
         boolean flag = true;
         if (!index.isEmpty()) {
             output.print("Ready to commit:\n\n");
             flag = false;
         }
-        printFiles(index.getNewFiles().keySet(), "New files:");
+        printFiles(stagedNewFiles.keySet(), "New files:");
         printFiles(index.getModifiedFiles().keySet(), "Modified files:");
-        if (!untrackedNewFiles.isEmpty() || !untrackedModifiedFiles.isEmpty() || !untrackedDeletedFiles.isEmpty()) {
+        printRenames(stagedRenames);
+        if (!untrackedNewFiles.isEmpty() || !untrackedModifiedFiles.isEmpty() || !untrackedDeletedFiles.isEmpty()
+                || !untrackedRenames.isEmpty()) {
             output.print("Untracked files:\n\n");
             flag = false;
         }
-        printFiles(untrackedNewFiles, "New files:");
-        printFiles(untrackedModifiedFiles, "Modified files:");
+        printFiles(untrackedNewFiles.keySet(), "New files:");
+        printFiles(untrackedModifiedFiles.keySet(), "Modified files:");
+        printRenames(untrackedRenames);
         printFiles(untrackedDeletedFiles, "Removed files:");
         if (flag) {
             output.println("Everything up to date");
         }
     }
 
-    public void add(@NotNull List<@NotNull String> arguments) throws GitException {
-        walk(arguments, "Add completed unsuccessful", index::containsFile, path -> {
+    private void runAdd(@NotNull List<@NotNull String> arguments) throws GitException {
+        checkInCone(arguments, "Add completed unsuccessful");
+        walk(arguments, "Add completed unsuccessful", path -> false, path -> {
             try {
-                addFileToIndex(path, getFileHash(path));
+                addFileToIndex(path);
             } catch (GitException e) {
                 throw new RuntimeException(e);
             }
@@ -211,26 +776,38 @@ public class MyGitRepository {
         output.println("Add completed successful");
     }
 
-    public void commit(String message) throws GitException {
-        makeCommit(message, curNode.commit.getBranch());
+    private void runCommit(String message) throws GitException {
+        makeCommit(message);
         output.println("Files committed");
     }
 
-    public void log(String revision) {
+    private void runLog(String revision, MyGitPorcelain.Format format) throws GitException {
         Node nd = curNode;
         String flagHash = "";
         int flagInt = Integer.MAX_VALUE;
         if (revision != null && revision.startsWith("HEAD~")) {
             flagInt = Integer.parseInt(revision.substring(5));
         } else if (revision != null && !revision.equals("master")) {
-            flagHash = revision;
+            flagHash = resolveRevision(revision);
         }
+        List<MyGitCommit> commits = new ArrayList<>();
         while (nd != null && !nd.commit.getHash().equals(flagHash) && flagInt >= 0) {
-            MyGitCommit commit = nd.commit;
-            if (commit.getMessage().equals("New branch")) {
-                nd = nd.parent;
-                continue;
+            commits.add(nd.commit);
+            nd = nd.parent;
+            flagInt--;
+        }
+        if (format != null) {
+            try (MyGitPorcelain porcelain = new MyGitPorcelain(output, format)) {
+                for (MyGitCommit commit : commits) {
+                    porcelain.commit(commit.getHash(), commit.getParentHash(), commit.getDate(), commit.getAuthor(),
+                            commit.getBranch(), commit.getMessage());
+                }
+            } catch (IOException e) {
+                throw new GitException("Can't write log", e);
             }
+            return;
+        }
+        for (MyGitCommit commit : commits) {
             /*output.println("Commit " + commit.getHash());
             output.println("Author: " + commit.getAuthor());
             output.println("Date: " + commit.getDate());*/
@@ -242,28 +819,30 @@ public class MyGitRepository {
             if (!commit.getMessage().equals("Initial commit")) {
                 output.println();
             }
-            nd = nd.parent;
-            flagInt--;
         }
     }
 
-    public void rm(@NotNull List<@NotNull String> arguments) throws GitException {
-        walk(arguments, "Rm completed unsuccessful", (path, hash) -> !index.containsFile(path, hash), path -> {
+    private void runRm(@NotNull List<@NotNull String> arguments) throws GitException {
+        checkInCone(arguments, "Rm completed unsuccessful");
+        walk(arguments, "Rm completed unsuccessful", path -> {
             try {
-                rmFileFromIndex(path);
+                return !index.containsFile(path, getFileHash(path));
             } catch (GitException e) {
                 throw new RuntimeException(e);
             }
-        });
+        }, index::delete);
         output.println("Rm completed successful");
     }
 
-    public void checkout(@NotNull List<@NotNull String> arguments) throws GitException {
+    private void runCheckout(@NotNull List<@NotNull String> arguments) throws GitException {
         MyGitCommit commit = curNode.commit;
         String command = arguments.get(0);
         if (command.equals("--")) {
             for (String file : arguments.subList(1, arguments.size())) {
                 Path path = Path.of(directory + "/" + file);
+                if (!isInCone(path)) {
+                    continue;
+                }
                 String fileHash = index.getFileHash(path);
                 if (fileHash == null) {
                     fileHash = commit.getFiles().get(path);
@@ -272,129 +851,1989 @@ public class MyGitRepository {
                     continue;
                 }
                 try {
-                    Files.copy(Path.of(filesDir + "/" + fileHash), path, StandardCopyOption.REPLACE_EXISTING);
-                } catch (IOException e) {
+                    objects.copyTo(fileHash, path);
+                } catch (GitException e) {
                     String message = "Can't copy file";
                     output.println(message);
                     throw new GitException(message, e);
                 }
             }
         } else {
-            String commitHash;
-            if (command.startsWith("HEAD~")) {
-                int to = Integer.parseInt(command.substring(5));
-                commitHash = getRelativeRevisionFromHead(to);
-            } else {
-                commitHash = metainf.branches.getOrDefault(command, command);
+            String commitHash = resolveRevision(command);
+            if (refs.contains(command)) {
+                checkNotCheckedOutElsewhere(command);
             }
             curNode = graph.get(commitHash);
             if (curNode == null) {
                 throw new GitException("Such commit hash is not available");
             }
             metainf.headCommitHash = curNode.commit.getHash();
+            metainf.currentBranch = refs.contains(command) ? command : null;
             updateDirectoryByCommit(curNode.commit, "Can't checkout");
             writeMetainf();
         }
         output.println("Checkout completed successful");
     }
 
-    public void reset(String toRevision) throws GitException {
+    private void runReset(String toRevision) throws GitException {
         String outMes = "Can't reset";
-        deleteLastCommits(toRevision, outMes);
-        if (curNode == null) {
-            throw new GitException("To big reset");
-        }
+        List<Node> removed = new ArrayList<>();
+        Node target = findResetTarget(toRevision, removed);
+        curNode = target;
         MyGitCommit commit = curNode.commit;
         updateDirectoryByCommit(commit, outMes);
         metainf.headCommitHash = commit.getHash();
-        metainf.branches.put(commit.getBranch(), commit.getHash());
+        if (metainf.currentBranch != null) {
+            refs.set(metainf.currentBranch, commit.getHash());
+        }
+        writeMetainf();
+        // Nothing points at the removed commits any more, a failure from here on leaves only unreferenced data
+        deleteCommits(removed, outMes);
         output.println("Reset successful");
     }
 
-    public void branchCreate(String branchName) throws GitException {
-        makeCommit("New branch", branchName);
+    /*
+     * A branch is only a name for a commit, creating one switches to it.
+     */
+    private void runBranchCreate(String branchName) throws GitException {
+        if (refs.contains(branchName)) {
+            throw new GitException("Branch " + branchName + " already exists");
+        }
+        refs.set(branchName, curNode.commit.getHash());
+        metainf.currentBranch = branchName;
+        writeMetainf();
         output.printf("Branch %s created successfully\n" +
                 "You can checkout it with 'checkout %s'\n", branchName, branchName);
     }
 
-    public void showBranches() {
-        output.println("Available branches:");
-        for (var branch : metainf.branches.keySet()) {
-            output.println(branch);
+    private void runShowBranches() {
+        StringBuilder branches = new StringBuilder("Available branches:\n");
+        for (var branch : refs.getBranches().keySet()) {
+            branches.append(branch).append('\n');
         }
+        output.print(branches);
     }
 
-    public void branchRemove(String branchName) throws GitException {
-        if (branchName.equals("master")) {
+    private void runBranchRemove(String branchName) throws GitException {
+        if (branchName.equals(GitConstants.MASTER)) {
             throw new GitException("Can't remove master");
         }
-        String headCommitHash = metainf.branches.get(branchName);
-        if (headCommitHash == null) {
+        if (!refs.contains(branchName)) {
             throw new GitException("No such branch");
         }
-        Node tempNode = curNode;
-        curNode = graph.get(headCommitHash);
-        Node nd = curNode;
-        int to = 0;
-        while (nd.commit.getBranch().equals(branchName)) {
-            nd = nd.parent;
-            to++;
-        }
-        String revision = String.format("HEAD~%d", to);
-        if (tempNode.commit.getBranch().equals(branchName)) {
-            tempNode = nd;
-            metainf.headCommitHash = nd.commit.getHash();
-            reset(revision);
-        } else {
-            deleteLastCommits(revision, "Can't remove branch");
+        if (branchName.equals(metainf.currentBranch)) {
+            throw new GitException("Can't remove current branch");
         }
-        curNode = tempNode;
-        metainf.branches.remove(branchName);
-        writeMetainf();
+        checkNotCheckedOutElsewhere(branchName);
+        refs.delete(branchName);
         output.printf("Branch %s removed successfully\n", branchName);
     }
 
-    public @NotNull String getRelativeRevisionFromHead(int n) throws GitException {
-        Node nd = curNode;
-        for (int i = 0; i < n; ++i) {
-            nd = nd.parent;
+    private void runSparseCheckout(@NotNull List<@NotNull String> arguments) throws GitException {
+        String command = arguments.isEmpty() ? "list" : arguments.get(0);
+        String message = "Can't update sparse checkout";
+        switch (command) {
+            case "list":
+                if (cone == null) {
+                    output.println("Sparse checkout is disabled");
+                } else {
+                    for (String pattern : cone.getPatterns()) {
+                        output.println(pattern);
+                    }
+                }
+                return;
+            case "set":
+                MyGitSparseCheckout newCone = new MyGitSparseCheckout(directory, arguments.subList(1, arguments.size()));
+                removeFilesOutsideCone(curNode.commit, newCone, message);
+                newCone.save(sparseCheckoutPath);
+                cone = newCone;
+                break;
+            case "disable":
+                try {
+                    Files.deleteIfExists(sparseCheckoutPath);
+                } catch (IOException e) {
+                    output.println(message);
+                    throw new GitException("Can't remove sparse-checkout configuration", e);
+                }
+                cone = null;
+                break;
+            default:
+                throw new GitException("Unknown sparse-checkout command " + command);
         }
-        return nd.commit.getHash();
+        materializeMissingFiles(curNode.commit, message);
+        output.println("Sparse checkout updated");
     }
 
-    // Private functions
-    private boolean isMyGitDirectory() {
-        return Files.exists(myGitDir);
+    private void runWorktree(@NotNull List<@NotNull String> arguments) throws GitException {
+        String command = arguments.isEmpty() ? "list" : arguments.get(0);
+        switch (command) {
+            case "list":
+                StringBuilder result = new StringBuilder("Worktrees:\n");
+                for (Path root : getWorktreeRoots()) {
+                    MetaInf head = root.equals(getRoot()) ? metainf : readMetainf(root);
+                    if (head == null) {
+                        result.append(root).append(" (missing)\n");
+                    } else if (head.currentBranch == null) {
+                        result.append(root).append(" detached at ").append(head.headCommitHash).append('\n');
+                    } else {
+                        result.append(root).append(' ').append(head.currentBranch).append('\n');
+                    }
+                }
+                output.print(result);
+                break;
+            case "add":
+                if (arguments.size() < 2) {
+                    throw new GitException("Usage: worktree add <path> [<branch>]");
+                }
+                addWorktree(arguments.get(1), arguments.size() > 2 ? arguments.get(2) : null);
+                break;
+            case "remove":
+                if (arguments.size() < 2) {
+                    throw new GitException("Usage: worktree remove <path> [--force]");
+                }
+                removeWorktree(arguments.get(1), arguments.contains("--force"));
+                break;
+            default:
+                throw new GitException("Unknown worktree command " + command);
+        }
     }
 
-    private String getFileHash(Path path) throws GitException {
-        if (!Files.exists(path) || path.toFile().isDirectory()) {
-            return "";
-        }
-        try (InputStream is = Files.newInputStream(path)) {
-            return DigestUtils.md5Hex(is);
-        } catch (IOException e) {
-            throw new GitException("Can't read file", e);
+    private void runBundle(@NotNull List<@NotNull String> arguments) throws GitException {
+        String command = arguments.isEmpty() ? "" : arguments.get(0);
+        switch (command) {
+            case "create":
+                if (arguments.size() < 3) {
+                    throw new GitException("Usage: bundle create <file> <revision range>");
+                }
+                createBundle(directory.resolve(arguments.get(1)), arguments.get(2));
+                break;
+            case "unbundle":
+                if (arguments.size() < 2) {
+                    throw new GitException("Usage: bundle unbundle <file>");
+                }
+                unbundle(directory.resolve(arguments.get(1)));
+                break;
+            default:
+                throw new GitException("Unknown bundle command " + command);
         }
     }
 
+    /*
+     * archive <revision> [--format=tar|zip] [--output=<file>]: without a file the archive goes to the output.
+     * The format defaults to the extension of the file, then to tar. HEAD and the working directory are not touched.
+     */
+    private void runArchive(@NotNull List<@NotNull String> arguments) throws GitException {
+        String revision = null;
+        String format = null;
+        Path file = null;
+        for (String argument : arguments) {
+            if (argument.startsWith("--format=")) {
+                format = argument.substring("--format=".length());
+            } else if (argument.startsWith("--output=")) {
+                file = directory.resolve(argument.substring("--output=".length()));
+            } else {
+                revision = argument;
+            }
+        }
+        if (revision == null) {
+            throw new GitException("Usage: archive <revision> [--format=tar|zip] [--output=<file>]");
+        }
+        if (format == null) {
+            format = file != null && file.toString().endsWith("." + MyGitArchive.ZIP) ? MyGitArchive.ZIP : MyGitArchive.TAR;
+        }
+        if (!MyGitArchive.isFormat(format)) {
+            throw new GitException("Unknown archive format " + format);
+        }
+        MyGitCommit commit = graph.get(resolveRevision(revision)).commit;
+        SortedMap<String, String> files = new TreeMap<>();
+        for (var entry : commit.getFiles().entrySet()) {
+            if (entry.getKey().startsWith(directory)) {
+                files.put(relativePath(entry.getKey()), entry.getValue());
+            }
+        }
+        MyGitArchive archive = new MyGitArchive(objects);
+        try {
+            if (file == null) {
+                archive.export(files, commit.getDate(), format, output);
+                output.flush();
+            } else {
+                try (OutputStream out = Files.newOutputStream(file)) {
+                    archive.export(files, commit.getDate(), format, out);
+                }
+                output.printf("Archive of %d files written to %s\n", files.size(), directory.relativize(file));
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't write archive", e);
+        }
+    }
+
+    /*
+     * diff [<revision> [<revision>]] [-- <path>...]
+     * Without revisions the working directory is compared with the staged state, with one revision
+     * with that commit. Only files whose hashes differ are read, see MyGitDiff.
+     */
+    private void runDiff(@NotNull List<@NotNull String> arguments) throws GitException {
+        List<String> revisions = new ArrayList<>();
+        List<Path> paths = new ArrayList<>();
+        boolean pathsStarted = false;
+        for (String argument : arguments) {
+            if (pathsStarted) {
+                paths.add(Path.of(directory + "/" + argument));
+            } else if (argument.equals("--")) {
+                pathsStarted = true;
+            } else {
+                revisions.add(argument);
+            }
+        }
+        if (revisions.size() > 2) {
+            throw new GitException("Usage: diff [<revision> [<revision>]] [-- <path>...]");
+        }
+        Predicate<Path> selected = path -> paths.isEmpty() || paths.stream().anyMatch(path::startsWith);
+        Map<Path, String> staged = new HashMap<>(curNode.commit.getFiles());
+        staged.putAll(index.getNewFiles());
+        staged.putAll(index.getModifiedFiles());
+        staged.keySet().removeAll(index.getDeletedFiles());
+        Map<Path, String> oldFiles = revisions.isEmpty() ? staged : graph.get(resolveRevision(revisions.get(0))).commit.getFiles();
+        Map<Path, String> newFiles = new HashMap<>();
+        boolean workingDirectory = revisions.size() < 2;
+        if (workingDirectory) {
+            Set<Path> tracked = new HashSet<>(staged.keySet());
+            tracked.addAll(oldFiles.keySet());
+            for (Path path : tracked) {
+                // Files outside of the sparse-checkout cone are absent on purpose
+                if (selected.test(path) && isInCone(path) && Files.isRegularFile(path)) {
+                    newFiles.put(path, getFileHash(path));
+                }
+            }
+        } else {
+            newFiles = graph.get(resolveRevision(revisions.get(1))).commit.getFiles();
+        }
+        SortedMap<String, Path> changed = new TreeMap<>();
+        for (Map<Path, String> files : List.of(oldFiles, newFiles)) {
+            for (Path path : files.keySet()) {
+                boolean present = files == newFiles || !workingDirectory || isInCone(path);
+                if (present && selected.test(path) && !Objects.equals(oldFiles.get(path), newFiles.get(path))) {
+                    changed.put(relativePath(path), path);
+                }
+            }
+        }
+        BufferedOutputStream out = new BufferedOutputStream(output, MyGitHashFunction.BUFFER_SIZE);
+        MyGitDiff diff = new MyGitDiff(out);
+        try {
+            for (var entry : changed.entrySet()) {
+                Path path = entry.getValue();
+                String oldHash = oldFiles.get(path);
+                String newHash = newFiles.get(path);
+                MyGitDiff.Source oldSource = oldHash == null ? null : () -> objects.newInputStream(oldHash);
+                MyGitDiff.Source newSource = newHash == null ? null
+                        : workingDirectory ? () -> Files.newInputStream(path) : () -> objects.newInputStream(newHash);
+                diff.diff(entry.getKey(), oldHash, oldSource, newHash, newSource);
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new GitException("Can't compare files", e);
+        }
+    }
+
+    /*
+     * blame <path> [<revision>]: every line with the message of the commit which introduced it.
+     * Only commits which changed the file are visited, see MyGitBlame.
+     */
+    private void runBlame(@NotNull List<@NotNull String> arguments) throws GitException {
+        if (arguments.isEmpty() || arguments.size() > 2) {
+            throw new GitException("Usage: blame <path> [<revision>]");
+        }
+        Path path = Path.of(directory + "/" + arguments.get(0));
+        Node node = arguments.size() > 1 ? graph.get(resolveRevision(arguments.get(1))) : curNode;
+        String hash = node.commit.getFiles().get(path);
+        if (hash == null) {
+            throw new GitException("No file " + arguments.get(0) + " in the revision");
+        }
+        MyGitBlame blame = new MyGitBlame(objects, blameDir);
+        Deque<MyGitBlame.Version> versions = new ArrayDeque<>();
+        while (true) {
+            // A version was introduced by the oldest commit of the run of commits which have it
+            while (node.parent != null && node.parent.commit.containsFile(path, hash)) {
+                node = node.parent;
+            }
+            MyGitBlame.Version version = new MyGitBlame.Version(node.commit.getHash(), hash);
+            versions.addFirst(version);
+            if (blame.isCached(version) || node.parent == null || !node.parent.commit.containsName(path)) {
+                break;
+            }
+            node = node.parent;
+            hash = node.commit.getFiles().get(path);
+        }
+        String[] commits = blame.blame(new ArrayList<>(versions));
+        int width = 0;
+        for (String commit : new HashSet<>(Arrays.asList(commits))) {
+            width = Math.max(width, Math.min(20, graph.get(commit).commit.getMessage().length()));
+        }
+        int numberWidth = Integer.toString(commits.length).length();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                objects.newInputStream(versions.getLast().getHash()), StandardCharsets.UTF_8))) {
+            for (int i = 0; i < commits.length; ++i) {
+                String message = graph.get(commits[i]).commit.getMessage();
+                output.printf("%-" + width + "s %" + numberWidth + "d) %s\n",
+                        message.length() > width ? message.substring(0, width) : message, i + 1, reader.readLine());
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't read file", e);
+        }
+    }
+
+    /*
+     * grep <pattern> [<revision> | <from>..<to>] [-- <path>...]
+     * Searches the history of the revision, HEAD by default, or the commits of the range. A version of a file
+     * is reported once, by the commit which introduced it, as <revision>~<n>:<path>:<line>:<text>.
+     * Lines are printed commit by commit from the newest while older objects are still being searched.
+     */
+    private void runGrep(@NotNull List<@NotNull String> arguments) throws GitException {
+        List<String> revisions = new ArrayList<>();
+        List<Path> paths = new ArrayList<>();
+        boolean pathsStarted = false;
+        for (String argument : arguments) {
+            if (pathsStarted) {
+                paths.add(Path.of(directory + "/" + argument));
+            } else if (argument.equals("--")) {
+                pathsStarted = true;
+            } else {
+                revisions.add(argument);
+            }
+        }
+        if (revisions.isEmpty() || revisions.size() > 2) {
+            throw new GitException("Usage: grep <pattern> [<revision> | <from>..<to>] [-- <path>...]");
+        }
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(revisions.get(0));
+        } catch (PatternSyntaxException e) {
+            throw new GitException("Wrong pattern " + revisions.get(0), e);
+        }
+        String range = revisions.size() > 1 ? revisions.get(1) : "HEAD";
+        int dots = range.indexOf("..");
+        String to = dots < 0 ? range : range.substring(dots + 2);
+        Node head = graph.get(resolveRevision(to));
+        Node base = dots < 0 ? null : getMergeBase(graph.get(resolveRevision(range.substring(0, dots))), head);
+        // Versions of files introduced by every commit of the range, newest commits first
+        List<Node> commits = new ArrayList<>();
+        List<SortedMap<Path, String>> introduced = new ArrayList<>();
+        for (Node nd = head; nd != base; nd = nd.parent) {
+            Map<Path, String> parentFiles = nd.parent == null ? Map.of() : nd.parent.commit.getFiles();
+            SortedMap<Path, String> files = new TreeMap<>();
+            for (var entry : nd.commit.getFiles().entrySet()) {
+                Path path = entry.getKey();
+                if (!entry.getValue().equals(parentFiles.get(path)) && (paths.isEmpty() || paths.stream().anyMatch(path::startsWith))) {
+                    files.put(path, entry.getValue());
+                }
+            }
+            commits.add(nd);
+            introduced.add(files);
+        }
+        try (MyGitGrep grep = new MyGitGrep(objects, pattern, Runtime.getRuntime().availableProcessors())) {
+            for (SortedMap<Path, String> files : introduced) {
+                files.values().forEach(grep::submit);
+            }
+            for (int i = 0; i < commits.size(); ++i) {
+                String name = i == 0 ? to : to + "~" + i;
+                for (var entry : introduced.get(i).entrySet()) {
+                    String path = relativePath(entry.getKey());
+                    for (MyGitGrep.Match match : grep.getMatches(entry.getValue())) {
+                        output.printf("%s:%s:%d:%s\n", name, path, match.getLine(), match.getText());
+                    }
+                }
+            }
+        }
+    }
+
+    private @NotNull String relativeRevisionFromHead(int n) throws GitException {
+        Node nd = curNode;
+        for (int i = 0; i < n; ++i) {
+            if (nd.parent == null) {
+                throw new GitException(shallow.contains(nd.commit.getHash())
+                        ? "HEAD~" + n + " is past the shallow boundary at commit " + nd.commit.getHash()
+                        : "Unknown revision HEAD~" + n);
+            }
+            nd = nd.parent;
+        }
+        return nd.commit.getHash();
+    }
+
+    // Private functions
+    private MyGitObjectStore createObjectStore() throws GitException {
+        long threshold = metainf.chunkingThreshold == null ? MyGitChunker.DEFAULT_THRESHOLD : metainf.chunkingThreshold;
+        int targetSize = metainf.chunkTargetSize == null ? MyGitChunker.DEFAULT_TARGET_SIZE : metainf.chunkTargetSize;
+        MyGitChunker chunker;
+        try {
+            chunker = new MyGitChunker(threshold, targetSize);
+        } catch (IllegalArgumentException e) {
+            throw new GitException("Wrong chunking configuration", e);
+        }
+        MyGitHashFunction hashFunction = MyGitHashFunction.forName(metainf.hashFunction);
+        MyGitObjectStore store = new MyGitObjectStore(filesDir, chunksDir, hashFunction, chunker);
+        for (String alternate : readAlternates(commonDir)) {
+            store.addAlternate(new MyGitObjectStore(Path.of(alternate + "/files"), Path.of(alternate + "/chunks"), hashFunction, null));
+        }
+        readPromisor();
+        if (promisor != null) {
+            MyGitObjectStore backing = new MyGitObjectStore(Path.of(promisor + "/files"), Path.of(promisor + "/chunks"), hashFunction, null);
+            for (String alternate : readAlternates(Path.of(promisor))) {
+                backing.addAlternate(new MyGitObjectStore(Path.of(alternate + "/files"), Path.of(alternate + "/chunks"), hashFunction, null));
+            }
+            store.setBacking(backing);
+        }
+        return store;
+    }
+
+    // "<backing myGit directory>" and "<cache limit in bytes>" lines
+    private void readPromisor() throws GitException {
+        Path path = Path.of(commonDir + "/" + PROMISOR_FILE);
+        promisor = null;
+        cacheLimit = 0;
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            List<String> lines = Files.readAllLines(path, StandardCharsets.UTF_8);
+            promisor = lines.get(0).strip();
+            cacheLimit = lines.size() > 1 ? Long.parseLong(lines.get(1).strip()) : 0;
+        } catch (IOException | IndexOutOfBoundsException | NumberFormatException e) {
+            throw new GitException("Can't read promisor", e);
+        }
+    }
+
+    /*
+     * Accepts HEAD, HEAD~N, <revision>~N, a branch name, a full commit hash or a unique prefix of one.
+     */
+    private @NotNull String resolveRevision(@NotNull String revision) throws GitException {
+        if (revision.startsWith("HEAD~")) {
+            try {
+                return relativeRevisionFromHead(Integer.parseInt(revision.substring(5)));
+            } catch (NumberFormatException e) {
+                throw new GitException("Wrong revision " + revision, e);
+            }
+        }
+        if (revision.equals("HEAD")) {
+            return curNode.commit.getHash();
+        }
+        int tilde = revision.lastIndexOf('~');
+        if (tilde > 0) {
+            Node nd = graph.get(resolveRevision(revision.substring(0, tilde)));
+            try {
+                for (int i = Integer.parseInt(revision.substring(tilde + 1)); i > 0 && nd != null; --i) {
+                    nd = nd.parent;
+                }
+            } catch (NumberFormatException e) {
+                throw new GitException("Wrong revision " + revision, e);
+            }
+            if (nd == null) {
+                throw new GitException("Unknown revision " + revision);
+            }
+            return nd.commit.getHash();
+        }
+        String hash = refs.get(revision);
+        if (hash != null) {
+            return hash;
+        }
+        if (graph.containsKey(revision)) {
+            return revision;
+        }
+        hash = commitIndex.resolve(revision);
+        if (hash == null) {
+            throw new GitException("Unknown revision " + revision);
+        }
+        return hash;
+    }
+
+    /*
+     * A linked worktree gets only its own HEAD and the checkout of it, history and objects stay shared.
+     */
+    private void addWorktree(String argument, String branch) throws GitException {
+        String message = "Can't add worktree";
+        Path root = directory.resolve(argument).toAbsolutePath().normalize();
+        try {
+            if (Files.exists(root) && (!Files.isDirectory(root) || !isEmptyDirectory(root))) {
+                throw new GitException("Directory " + argument + " already exists and is not empty");
+            }
+            if (branch == null) {
+                branch = root.getFileName().toString();
+            }
+            if (refs.contains(branch)) {
+                checkNotCheckedOutElsewhere(branch);
+            } else {
+                refs.set(branch, curNode.commit.getHash());
+            }
+            Node head = graph.get(refs.get(branch));
+            Path worktreeMyGitDir = root.resolve(myGitDir.getFileName());
+            Files.createDirectories(worktreeMyGitDir);
+            MyGitWorktrees.setCommonDir(worktreeMyGitDir, commonDir);
+            MetaInf worktreeMetainf = new MetaInf(new Date(), metainf.hashFunction);
+            worktreeMetainf.chunkingThreshold = metainf.chunkingThreshold;
+            worktreeMetainf.chunkTargetSize = metainf.chunkTargetSize;
+            worktreeMetainf.headCommitHash = head.commit.getHash();
+            worktreeMetainf.currentBranch = branch;
+            writeJson(worktreeMyGitDir.resolve(metainfPath.getFileName()), worktreeMetainf);
+            worktrees.add(root);
+            checkoutInto(root, head.commit, objects);
+        } catch (IOException | GitException e) {
+            output.println(message);
+            throw new GitException(message, e);
+        }
+        output.printf("Worktree %s created on branch %s\n", argument, branch);
+    }
+
+    // Writes files of the commit into another, empty, working directory
+    private void checkoutInto(Path root, MyGitCommit commit, MyGitObjectStore store) throws IOException, GitException {
+        store.prefetch(commit.getFiles().values(), FETCH_THREADS);
+        for (var entry : commit.getFiles().entrySet()) {
+            if (!entry.getKey().startsWith(directory)) {
+                continue;
+            }
+            Path target = root.resolve(directory.relativize(entry.getKey()));
+            Files.createDirectories(target.getParent());
+            store.copyTo(entry.getValue(), target);
+        }
+    }
+
+    /*
+     * Immutable data, objects, chunks and commits, are hard-linked into the clone. When links are
+     * impossible (another file system) or --shared is given, the clone reads objects of this repository
+     * through its alternates file instead. Only branches, the commit index and HEAD are written anew.
+     * A clone with a depth gets the last depth commits of every branch and of HEAD and only their objects,
+     * the commits whose parents are left out are listed in its myGit/shallow.
+     * A partial clone gets no objects at all. Its myGit/promisor names the repository holding them,
+     * the clone fetches the ones it reads, starting with the checkout, and keeps up to cacheLimit bytes of them.
+     * A clone of a partial repository is partial as well and fetches from the same repository.
+     */
+    private void cloneTo(Path root, boolean shared, int depth, boolean partial, long cacheLimit) throws GitException {
+        if (metainf == null) {
+            throw new GitException("Not a myGit repository: " + directory);
+        }
+        String message = "Can't clone repository";
+        try {
+            if (Files.exists(root) && (!Files.isDirectory(root) || !isEmptyDirectory(root))) {
+                throw new GitException("Directory " + root + " already exists and is not empty");
+            }
+            Path targetMyGitDir = root.resolve(myGitDir.getFileName());
+            Path targetFilesDir = targetMyGitDir.resolve(filesDir.getFileName());
+            Path targetChunksDir = targetMyGitDir.resolve(chunksDir.getFileName());
+            Path targetCommitsDir = targetMyGitDir.resolve(commitsDir.getFileName());
+            Files.createDirectories(targetFilesDir);
+            Files.createDirectories(targetCommitsDir);
+            Set<String> boundary = new TreeSet<>(shallow);
+            Set<String> commits = depth > 0 ? getShallowCommits(depth, boundary) : graph.keySet();
+            MyGitStats targetStats;
+            boolean linked;
+            String backing = null;
+            if (partial || promisor != null) {
+                targetStats = new MyGitStats();
+                backing = promisor != null ? promisor : commonDir.toAbsolutePath().normalize().toString();
+                Files.write(targetMyGitDir.resolve(PROMISOR_FILE),
+                        List.of(backing, Long.toString(partial ? cacheLimit : this.cacheLimit)), StandardCharsets.UTF_8);
+                addBorrower(Path.of(backing), targetMyGitDir);
+                linked = true;
+            } else if (depth > 0 && !shared) {
+                // Only objects of the commits kept, the clone counts them as they come
+                targetStats = new MyGitStats();
+                MyGitObjectStore targetObjects = new MyGitObjectStore(targetFilesDir, targetChunksDir, objects.getHashFunction(), null);
+                targetObjects.setStats(targetStats);
+                Set<String> copied = new HashSet<>();
+                for (String hash : commits) {
+                    for (String object : graph.get(hash).commit.getFiles().values()) {
+                        if (copied.add(object)) {
+                            objects.copyInto(object, targetObjects);
+                        }
+                    }
+                }
+                linked = true;
+            } else {
+                linked = !shared && linkFiles(filesDir, targetFilesDir) && linkFiles(chunksDir, targetChunksDir);
+                targetStats = linked ? stats : null;
+            }
+            if (!linked) {
+                List<String> alternates = new ArrayList<>();
+                alternates.add(commonDir.toAbsolutePath().normalize().toString());
+                alternates.addAll(readAlternates(commonDir));
+                Files.write(targetMyGitDir.resolve(ALTERNATES_FILE), alternates, StandardCharsets.UTF_8);
+                for (String alternate : alternates) {
+                    addBorrower(Path.of(alternate), targetMyGitDir);
+                }
+            }
+            for (String hash : commits) {
+                Path commit = Path.of(commitsDir + "/" + hash + ".json");
+                Path targetCommit = targetCommitsDir.resolve(commit.getFileName());
+                // Commits with absolute paths are rewritten, the clone would read them as files of this repository
+                if (absolutePathCommits.contains(hash) || !createLink(targetCommit, commit)) {
+                    writeJson(targetCommit, graph.get(hash).commit);
+                }
+            }
+            new MyGitRefs(targetMyGitDir.resolve("packed-refs")).setAll(refs.getBranches());
+            new MyGitCommitIndex(targetMyGitDir.resolve("commit-index")).open(commits);
+            if (!boundary.isEmpty()) {
+                Files.write(targetMyGitDir.resolve(shallowPath.getFileName()), boundary, StandardCharsets.US_ASCII);
+            }
+            MetaInf targetMetainf = new MetaInf(new Date(), metainf.hashFunction);
+            targetMetainf.chunkingThreshold = metainf.chunkingThreshold;
+            targetMetainf.chunkTargetSize = metainf.chunkTargetSize;
+            targetMetainf.headCommitHash = metainf.headCommitHash;
+            targetMetainf.currentBranch = metainf.currentBranch;
+            MyGitObjectStore checkoutObjects = objects;
+            if (backing != null) {
+                // The checkout is the first read of the clone, its objects are fetched into it
+                checkoutObjects = new MyGitObjectStore(targetFilesDir, targetChunksDir, objects.getHashFunction(), null);
+                checkoutObjects.setBacking(objects);
+                checkoutObjects.setStats(targetStats);
+            }
+            checkoutInto(root, curNode.commit, checkoutObjects);
+            if (targetStats != null) {
+                // A clone reading objects through alternates has none of its own, it counts them when asked
+                writeJson(targetMyGitDir.resolve(statsPath.getFileName()), targetStats);
+            }
+            writeJson(targetMyGitDir.resolve(metainfPath.getFileName()), targetMetainf);
+        } catch (IOException | GitException e) {
+            output.println(message);
+            throw new GitException(message, e);
+        }
+    }
+
+    /*
+     * Takes up to depth ancestors of every boundary commit from the source, parents first, with their objects.
+     * The oldest of them become the boundary unless their parents are here already.
+     */
+    private void runDeepen(MyGitRepository source, int depth) throws GitException {
+        if (metainf == null || source.metainf == null) {
+            throw new GitException("Not a myGit repository: " + (metainf == null ? directory : source.directory));
+        }
+        if (!objects.getHashFunction().getName().equals(source.objects.getHashFunction().getName())) {
+            throw new GitException("Repositories use different hash functions");
+        }
+        if (shallow.isEmpty()) {
+            output.println("Repository is not shallow");
+            return;
+        }
+        List<Node> fetched = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (String hash : new TreeSet<>(shallow)) {
+            Node nd = source.graph.get(hash);
+            if (nd == null) {
+                throw new GitException("Source repository lacks commit " + hash);
+            }
+            List<Node> ancestors = new ArrayList<>();
+            for (Node next = nd.parent; next != null && ancestors.size() < depth && !graph.containsKey(next.commit.getHash())
+                    && seen.add(next.commit.getHash()); next = next.parent) {
+                ancestors.add(next);
+            }
+            Collections.reverse(ancestors);
+            fetched.addAll(ancestors);
+        }
+        int objectCount = 0;
+        try {
+            Set<String> copied = new HashSet<>();
+            for (Node nd : fetched) {
+                for (String object : nd.commit.getFiles().values()) {
+                    if (copied.add(object) && !objects.contains(object)) {
+                        source.objects.copyInto(object, objects);
+                        objectCount++;
+                    }
+                }
+            }
+            for (Node nd : fetched) {
+                // Paths are re-rooted into this repository through the serialized form
+                addCommit(mapper.readValue(source.mapper.writeValueAsBytes(nd.commit), MyGitCommit.class));
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't transfer objects", e);
+        }
+        Set<String> boundary = new TreeSet<>();
+        for (String hash : shallow) {
+            Node node = graph.get(hash);
+            node.parent = graph.get(node.commit.getParentHash());
+            if (node.parent == null) {
+                boundary.add(hash);
+            }
+        }
+        for (Node nd : fetched) {
+            String parent = nd.commit.getParentHash();
+            if (parent != null && !graph.containsKey(parent)) {
+                boundary.add(nd.commit.getHash());
+            }
+        }
+        // Depths counted from the old boundary are wrong now
+        for (Node node : graph.values()) {
+            node.depth = -1;
+        }
+        shallow.clear();
+        shallow.addAll(boundary);
+        try {
+            if (shallow.isEmpty()) {
+                Files.deleteIfExists(shallowPath);
+            } else {
+                Files.write(shallowPath, shallow, StandardCharsets.US_ASCII);
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't update shallow boundary", e);
+        }
+        output.printf("Fetched %d commits, %d objects\n", fetched.size(), objectCount);
+        if (shallow.isEmpty()) {
+            output.println("Repository is no longer shallow");
+        }
+    }
+
+    /*
+     * Commits at most depth steps from a branch head or HEAD. Those of them whose parents are not taken
+     * are added to the boundary, and so are boundary commits of this repository which are taken.
+     */
+    private Set<String> getShallowCommits(int depth, Set<String> boundary) {
+        Set<String> result = new HashSet<>();
+        List<Node> heads = new ArrayList<>();
+        heads.add(curNode);
+        for (String hash : refs.getBranches().values()) {
+            heads.add(graph.get(hash));
+        }
+        for (Node head : heads) {
+            Node nd = head;
+            for (int i = 0; i < depth && nd != null; ++i) {
+                result.add(nd.commit.getHash());
+                nd = nd.parent;
+            }
+        }
+        boundary.retainAll(result);
+        for (String hash : result) {
+            Node parent = graph.get(hash).parent;
+            if (parent != null && !result.contains(parent.commit.getHash())) {
+                boundary.add(hash);
+            }
+        }
+        return result;
+    }
+
+    // Hard-links every object of the directory, false if the file system can't link them
+    private static boolean linkFiles(Path from, Path to) throws IOException {
+        if (!Files.isDirectory(from)) {
+            return true;
+        }
+        Files.createDirectories(to);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(from)) {
+            for (Path file : stream) {
+                if (!file.getFileName().toString().startsWith(TEMP_PREFIX) && !createLink(to.resolve(file.getFileName()), file)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean createLink(Path link, Path existing) throws IOException {
+        try {
+            Files.createLink(link, existing);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            return false;
+        }
+    }
+
+    private static List<String> readAlternates(Path myGitDir) throws GitException {
+        Path path = Path.of(myGitDir + "/" + ALTERNATES_FILE);
+        if (!Files.exists(path)) {
+            return Collections.emptyList();
+        }
+        try {
+            List<String> alternates = new ArrayList<>();
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    alternates.add(line.strip());
+                }
+            }
+            return alternates;
+        } catch (IOException e) {
+            throw new GitException("Can't read alternates", e);
+        }
+    }
+
+    private void removeWorktree(String argument, boolean force) throws GitException {
+        Path root = directory.resolve(argument).toAbsolutePath().normalize();
+        if (!worktrees.getWorktrees().contains(root)) {
+            throw new GitException("No linked worktree " + argument);
+        }
+        if (root.equals(getRoot())) {
+            throw new GitException("Can't remove current worktree");
+        }
+        MetaInf head = readMetainf(root);
+        if (!force && head != null && hasLocalChanges(root, head)) {
+            throw new GitException("Worktree " + argument + " has local changes, use --force to remove it");
+        }
+        try {
+            if (Files.exists(root)) {
+                Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                        Files.delete(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                        if (e != null) {
+                            throw e;
+                        }
+                        Files.delete(dir);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't remove worktree " + argument, e);
+        }
+        worktrees.remove(root);
+        output.printf("Worktree %s removed\n", argument);
+    }
+
+    // Whether files of the worktree differ from its head commit, it is checked without opening the worktree
+    private boolean hasLocalChanges(Path root, MetaInf head) throws GitException {
+        Node node = graph.get(head.headCommitHash);
+        if (node == null) {
+            return true;
+        }
+        Path worktreeMyGitDir = root.resolve(myGitDir.getFileName());
+        MyGitSparseCheckout worktreeCone = MyGitSparseCheckout.load(root, worktreeMyGitDir.resolve(sparseCheckoutPath.getFileName()));
+        Map<Path, String> files = new HashMap<>();
+        for (var entry : node.commit.getFiles().entrySet()) {
+            Path path = root.resolve(directory.relativize(entry.getKey()));
+            if (worktreeCone == null || worktreeCone.contains(path)) {
+                files.put(path, entry.getValue());
+            }
+        }
+        boolean[] changed = {false};
+        try {
+            new MyGitIgnore(root, worktreeMyGitDir, worktreeCone).walk(root, path -> {
+                try {
+                    String hash = files.remove(path);
+                    changed[0] |= hash == null || !hash.equals(objects.hash(path));
+                } catch (GitException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (IOException e) {
+            throw new GitException("Can't read worktree " + root, e);
+        } catch (RuntimeException e) {
+            throw (GitException) e.getCause();
+        }
+        return changed[0] || !files.isEmpty();
+    }
+
+    private static boolean isEmptyDirectory(Path dir) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            return !stream.iterator().hasNext();
+        }
+    }
+
+    private Path getRoot() {
+        return directory.toAbsolutePath().normalize();
+    }
+
+    // The main worktree first, then the linked ones
+    private List<Path> getWorktreeRoots() {
+        List<Path> roots = new ArrayList<>();
+        roots.add(commonDir.toAbsolutePath().normalize().getParent());
+        roots.addAll(worktrees.getWorktrees());
+        return roots;
+    }
+
+    private MetaInf readMetainf(Path root) throws GitException {
+        Path path = root.resolve(myGitDir.getFileName()).resolve(metainfPath.getFileName());
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            return mapper.readValue(path.toFile(), MetaInf.class);
+        } catch (IOException e) {
+            throw new GitException("Can't read metainf of worktree " + root, e);
+        }
+    }
+
+    // <Worktree root, its metainf> for all other worktrees of the repository
+    private Map<Path, MetaInf> getOtherWorktreeHeads() throws GitException {
+        Map<Path, MetaInf> heads = new LinkedHashMap<>();
+        for (Path root : getWorktreeRoots()) {
+            if (root.equals(getRoot())) {
+                continue;
+            }
+            MetaInf head = readMetainf(root);
+            if (head != null) {
+                heads.put(root, head);
+            }
+        }
+        return heads;
+    }
+
+    private void checkNotCheckedOutElsewhere(String branch) throws GitException {
+        for (var entry : getOtherWorktreeHeads().entrySet()) {
+            if (branch.equals(entry.getValue().currentBranch)) {
+                throw new GitException("Branch " + branch + " is checked out in worktree " + entry.getKey());
+            }
+        }
+    }
+
+    /*
+     * The range is "<revision>", all its history, or "<from>..<to>", commits of to which from doesn't have.
+     * Only objects which the commit before the range doesn't already contain are written.
+     */
+    private void createBundle(Path file, String range) throws GitException {
+        int dots = range.indexOf("..");
+        String to = dots < 0 ? range : range.substring(dots + 2);
+        Node head = graph.get(resolveRevision(to));
+        Node base = dots < 0 ? null : getMergeBase(graph.get(resolveRevision(range.substring(0, dots))), head);
+        List<Node> commits = new ArrayList<>();
+        for (Node nd = head; nd != base; nd = nd.parent) {
+            commits.add(nd);
+        }
+        Collections.reverse(commits);
+        Set<String> baseObjects = base == null ? Collections.emptySet() : new HashSet<>(base.commit.getFiles().values());
+        Set<String> bundledObjects = new LinkedHashSet<>();
+        for (Node nd : commits) {
+            for (String hash : nd.commit.getFiles().values()) {
+                if (!baseObjects.contains(hash)) {
+                    bundledObjects.add(hash);
+                }
+            }
+        }
+        List<String> prerequisites = base == null ? Collections.emptyList() : List.of(base.commit.getHash());
+        Map<String, String> branches = refs.contains(to) ? Map.of(to, head.commit.getHash()) : Collections.emptyMap();
+        try (MyGitBundle.Writer bundle = new MyGitBundle.Writer(file, objects.getHashFunction().getName(), prerequisites, branches)) {
+            for (String hash : bundledObjects) {
+                bundle.add(MyGitBundle.OBJECT, hash, objects.size(hash), out -> objects.copyTo(hash, out));
+            }
+            for (Node nd : commits) {
+                byte[] json = mapper.writeValueAsBytes(nd.commit);
+                bundle.add(MyGitBundle.COMMIT, nd.commit.getHash(), json.length, out -> out.write(ByteBuffer.wrap(json)));
+            }
+            bundle.finish();
+        } catch (IOException e) {
+            throw new GitException("Can't create bundle " + file, e);
+        }
+        output.printf("Bundle created: %d commits, %d objects\n", commits.size(), bundledObjects.size());
+    }
+
+    /*
+     * Objects are streamed into the store and their hashes are checked as they are written.
+     * Objects and commits which the repository already has are skipped, branches are fast-forwarded.
+     */
+    private void unbundle(Path file) throws GitException {
+        int commitCount = 0;
+        int objectCount = 0;
+        try (MyGitBundle.Reader bundle = new MyGitBundle.Reader(file)) {
+            if (!bundle.getHashFunction().equals(objects.getHashFunction().getName())) {
+                throw new GitException("Bundle uses hash function " + bundle.getHashFunction()
+                        + ", the repository uses " + objects.getHashFunction().getName());
+            }
+            for (String hash : bundle.getPrerequisites()) {
+                if (!graph.containsKey(hash)) {
+                    throw new GitException("Repository lacks prerequisite commit " + hash);
+                }
+            }
+            for (MyGitBundle.Entry entry = bundle.next(); entry != null; entry = bundle.next()) {
+                String hash = entry.getHash();
+                if (entry.getType() == MyGitBundle.OBJECT && !objects.contains(hash)) {
+                    String storedHash = objects.store(bundle.getContent(), entry.getLength());
+                    if (!storedHash.equals(hash)) {
+                        throw new GitException("Corrupted bundle: object " + hash + " has hash " + storedHash);
+                    }
+                    objectCount++;
+                } else if (entry.getType() == MyGitBundle.COMMIT && !graph.containsKey(hash)) {
+                    MyGitCommit commit = mapper.readValue(bundle.getContent(), MyGitCommit.class);
+                    checkReceivedCommit(commit, hash);
+                    addCommit(commit);
+                    commitCount++;
+                }
+            }
+            for (var branch : bundle.getBranches().entrySet()) {
+                fastForward(branch.getKey(), branch.getValue(), true);
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't read bundle " + file, e);
+        }
+        output.printf("Unbundled %d commits, %d objects\n", commitCount, objectCount);
+    }
+
+    /*
+     * Objects and commits go straight into the store, the working directory and the index are not touched.
+     * Branches being imported are followed in memory and moved once at the end, and commits are added to
+     * the commit index in one write. Metainf is written once by the lock.
+     * A branch is checked before the first commit onto it is written: one checked out anywhere is refused, and
+     * commits must go on from its tip. A reset command sets the branch to any commit, also back in its history.
+     */
+    private void runFastImport(InputStream stream) throws GitException {
+        Map<String, String> marks = new HashMap<>();
+        Map<String, Node> tips = new LinkedHashMap<>();
+        Set<String> reset = new HashSet<>();
+        List<String> imported = new ArrayList<>();
+        int objectCount = 0;
+        String author = System.getProperty("user.name");
+        try (MyGitFastImport.Reader reader = new MyGitFastImport.Reader(stream)) {
+            for (MyGitFastImport.Command command = reader.next(); command != null; command = reader.next()) {
+                switch (command.getType()) {
+                    case BLOB:
+                        String hash = objects.store(reader.getContent(), command.getLength());
+                        if (command.getMark() != null) {
+                            marks.put(command.getMark(), hash);
+                        }
+                        objectCount++;
+                        break;
+                    case COMMIT:
+                        Node parent = command.getFrom() != null ? resolveImportedCommit(command.getFrom(), marks, tips)
+                                : tips.containsKey(command.getBranch()) ? tips.get(command.getBranch())
+                                : refs.contains(command.getBranch()) ? graph.get(refs.get(command.getBranch()))
+                                : getRootNode();
+                        checkImportBranch(command.getBranch(), parent, tips, reset);
+                        Map<Path, String> changed = new HashMap<>();
+                        Set<Path> deleted = new HashSet<>();
+                        for (MyGitFastImport.Change change : command.getChanges()) {
+                            Path path = toRepositoryPath(change.getPath());
+                            if (change.getObject() == null) {
+                                changed.remove(path);
+                                deleted.add(path);
+                                continue;
+                            }
+                            String object = marks.getOrDefault(change.getObject(), change.getObject());
+                            if (!objects.contains(object)) {
+                                throw new GitException("Object " + change.getObject() + " of " + change.getPath() + " is missing");
+                            }
+                            changed.put(path, object);
+                            deleted.remove(path);
+                        }
+                        MyGitCommit commit = new MyGitCommit(command.getMessage(),
+                                command.getAuthor() != null ? command.getAuthor() : author,
+                                command.getDate() != null ? command.getDate() : new Date(),
+                                parent == null ? null : parent.commit, changed, deleted, command.getBranch());
+                        Node node = new Node(commit);
+                        node.parent = parent;
+                        try {
+                            writeJson(Path.of(commitsDir + "/" + commit.getHash() + ".json"), commit);
+                        } catch (IOException e) {
+                            throw new GitException("Can't write commit " + commit.getHash(), e);
+                        }
+                        graph.put(commit.getHash(), node);
+                        imported.add(commit.getHash());
+                        if (command.getMark() != null) {
+                            marks.put(command.getMark(), commit.getHash());
+                        }
+                        tips.put(command.getBranch(), node);
+                        break;
+                    case RESET:
+                        Node from = command.getFrom() == null ? getRootNode()
+                                : resolveImportedCommit(command.getFrom(), marks, tips);
+                        reset.add(command.getBranch());
+                        checkImportBranch(command.getBranch(), from, tips, reset);
+                        tips.put(command.getBranch(), from);
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't read fast-import stream", e);
+        } finally {
+            // Commits written before a failure stay in the store, unreachable but known to the index
+            commitIndex.addAll(imported);
+        }
+        output.printf("Imported %d commits, %d objects\n", imported.size(), objectCount);
+        for (var tip : tips.entrySet()) {
+            String hash = tip.getValue().commit.getHash();
+            if (hash.equals(refs.get(tip.getKey()))) {
+                output.printf("Branch %s is up to date\n", tip.getKey());
+            } else {
+                refs.set(tip.getKey(), hash);
+                output.printf("Branch %s updated\n", tip.getKey());
+            }
+        }
+    }
+
+    // Checked when the branch is first named and for each commit onto it, before anything for it is written
+    private void checkImportBranch(String branch, Node next, Map<String, Node> tips, Set<String> reset)
+            throws GitException {
+        if (!tips.containsKey(branch)) {
+            if (branch.equals(metainf.currentBranch) && !isHeadDetached()) {
+                throw new GitException("Branch " + branch + " is checked out");
+            }
+            checkNotCheckedOutElsewhere(branch);
+        }
+        if (reset.contains(branch)) {
+            return;
+        }
+        Node tip = tips.containsKey(branch) ? tips.get(branch) : refs.contains(branch) ? graph.get(refs.get(branch)) : null;
+        if (tip != null && !isAncestor(tip, next) && !isEmptyRoot(tip)) {
+            throw new GitException("Import onto branch " + branch + " is not a fast-forward, reset it first");
+        }
+    }
+
+    // Threads sharing this repository object may look files up while one of them loads it
+    private synchronized String lookUpFile(String revision, String path) throws GitException {
+        return getRevisionFileHash(revision, path);
+    }
+
+    private String getRevisionFileHash(String revision, String path) throws GitException {
+        if (metainf == null) {
+            throw new GitException("Not a myGit repository: " + directory);
+        }
+        String hash = graph.get(resolveRevision(revision)).commit.getFiles().get(toRepositoryPath(path));
+        if (hash == null) {
+            throw new GitException("File " + path + " is not in revision " + revision);
+        }
+        return hash;
+    }
+
+    // Path of a file given relative to the root of the repository, as commits keep it
+    private Path toRepositoryPath(String relative) throws GitException {
+        Path path = Path.of(directory + "/" + relative);
+        Path normalized = path.normalize();
+        if (!normalized.startsWith(directory.normalize()) || normalized.equals(directory.normalize())) {
+            throw new GitException("Path " + relative + " is outside of the repository");
+        }
+        return path;
+    }
+
+    /*
+     * Contents are stored by a pool of threads before the commit is written, a failure leaves them
+     * in the store unreferenced. A branch checked out anywhere is not moved, its working directory
+     * would no longer match it.
+     */
+    private String runBuiltCommit(MyGitCommitBuilder builder) throws GitException {
+        if (metainf == null) {
+            throw new GitException("Not a myGit repository: " + directory);
+        }
+        String branch = builder.getBranch();
+        if (branch.equals(metainf.currentBranch) && !isHeadDetached()) {
+            throw new GitException("Branch " + branch + " is checked out");
+        }
+        checkNotCheckedOutElsewhere(branch);
+        String tip = refs.get(branch);
+        Node parent;
+        if (builder.getParent() != null) {
+            parent = graph.get(resolveRevision(builder.getParent()));
+            if (tip != null && !tip.equals(parent.commit.getHash())) {
+                throw new GitException("Branch " + branch + " moved to " + tip);
+            }
+        } else {
+            parent = tip != null ? graph.get(tip) : getRootNode();
+        }
+        Map<Path, String> changed = storeContents(builder.getFiles());
+        Set<Path> deleted = new HashSet<>();
+        for (String path : builder.getDeleted()) {
+            deleted.add(toRepositoryPath(path));
+        }
+        MyGitCommit commit = new MyGitCommit(builder.getMessage(), builder.getAuthor(),
+                builder.getDate() != null ? builder.getDate() : new Date(), parent.commit, changed, deleted, branch);
+        addCommit(commit);
+        refs.set(branch, commit.getHash());
+        return commit.getHash();
+    }
+
+    private Map<Path, String> storeContents(Map<String, MyGitCommitBuilder.Content> contents) throws GitException {
+        Map<Path, Future<String>> hashes = new LinkedHashMap<>();
+        Map<Path, String> result = new HashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            for (var entry : contents.entrySet()) {
+                MyGitCommitBuilder.Content content = entry.getValue();
+                hashes.put(toRepositoryPath(entry.getKey()), pool.submit(() -> {
+                    if (content.getBuffer() != null) {
+                        return objects.store(content.getBuffer());
+                    }
+                    try (InputStream in = content.getStream()) {
+                        return objects.store(in, content.getLength());
+                    }
+                }));
+            }
+            for (var entry : hashes.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GitException("Commit interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof GitException) {
+                throw (GitException) e.getCause();
+            }
+            throw new GitException("Can't store contents", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return result;
+    }
+
+    // A mark, a branch being imported, or any revision of the repository
+    private Node resolveImportedCommit(String revision, Map<String, String> marks, Map<String, Node> tips)
+            throws GitException {
+        if (marks.containsKey(revision)) {
+            Node node = graph.get(marks.get(revision));
+            if (node == null) {
+                throw new GitException("Mark " + revision + " is not a commit");
+            }
+            return node;
+        }
+        if (tips.containsKey(revision)) {
+            return tips.get(revision);
+        }
+        return graph.get(resolveRevision(revision));
+    }
+
+    private void runGc(long cutoff) throws GitException {
+        if (metainf == null) {
+            throw new GitException("Not a myGit repository: " + directory);
+        }
+        Set<String> referenced = new HashSet<>(index.getNewFiles().values());
+        referenced.addAll(index.getModifiedFiles().values());
+        for (Node node : graph.values()) {
+            referenced.addAll(node.commit.getFiles().values());
+        }
+        try {
+            List<MyGitObjectStore> borrowers = new ArrayList<>();
+            for (Path borrower : readBorrowers()) {
+                addCommittedObjects(borrower, referenced);
+                borrowers.add(new MyGitObjectStore(borrower.resolve(filesDir.getFileName()),
+                        borrower.resolve(chunksDir.getFileName()), objects.getHashFunction(), null));
+            }
+            int deleted = 0;
+            for (String hash : objects.listObjects()) {
+                if (!referenced.contains(hash) && objects.getModifiedTime(hash) <= cutoff) {
+                    objects.delete(hash);
+                    deleted++;
+                }
+            }
+            int chunks = objects.deleteUnusedChunks(borrowers);
+            new MyGitRenames(objects, sketchesDir).deleteUnusedSketches();
+            new MyGitBlame(objects, blameDir).deleteUnusedEntries(graph.keySet());
+            output.printf("Deleted %d objects and %d chunks\n", deleted, chunks);
+        } catch (IOException e) {
+            throw new GitException("Can't collect objects", e);
+        }
+    }
+
+    // Clones gone since they were made are skipped
+    private List<Path> readBorrowers() throws IOException {
+        Path path = Path.of(commonDir + "/" + BORROWERS_FILE);
+        List<Path> borrowers = new ArrayList<>();
+        if (Files.exists(path)) {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                if (!line.isBlank() && Files.isDirectory(Path.of(line.strip(), commitsDir.getFileName().toString()))) {
+                    borrowers.add(Path.of(line.strip()));
+                }
+            }
+        }
+        return borrowers;
+    }
+
+    private void addCommittedObjects(Path otherMyGitDir, Set<String> hashes) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(otherMyGitDir.resolve(commitsDir.getFileName()), "*.json")) {
+            for (Path path : stream) {
+                if (!path.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    hashes.addAll(mapper.readValue(path.toFile(), MyGitCommit.class).getFiles().values());
+                }
+            }
+        }
+    }
+
+    // The clone reads objects of the repository, gc there keeps the ones its commits refer to
+    private static void addBorrower(Path myGitDir, Path borrower) throws IOException {
+        Files.writeString(myGitDir.resolve(BORROWERS_FILE), borrower.toAbsolutePath().normalize() + "\n",
+                StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private void runStats(boolean recount, int threads) throws GitException {
+        if (metainf == null) {
+            throw new GitException("Not a myGit repository: " + directory);
+        }
+        if (recount) {
+            MyGitStats counted = MyGitStats.count(objects, threads);
+            int commitCount;
+            try (var files = Files.list(commitsDir)) {
+                commitCount = (int) files.filter(path -> path.getFileName().toString().endsWith(".json")
+                        && !path.getFileName().toString().startsWith(TEMP_PREFIX)).count();
+            } catch (IOException e) {
+                throw new GitException("Can't list commits", e);
+            }
+            if (stats == null) {
+                output.println("Counters counted anew");
+            } else {
+                boolean correct = checkCounter("Objects", stats.objects, counted.objects);
+                correct &= checkCounter("Object bytes", stats.objectBytes, counted.objectBytes);
+                correct &= checkCounter("Chunks", stats.chunks, counted.chunks);
+                correct &= checkCounter("Stored bytes", stats.storedBytes, counted.storedBytes);
+                correct &= checkCounter("Commits", graph.size(), commitCount);
+                if (correct) {
+                    output.println("Counters are correct");
+                }
+            }
+            stats = counted;
+            objects.setStats(stats);
+        }
+        output.printf("Objects: %d (%d bytes)\n", stats.objects, stats.objectBytes);
+        output.printf("Chunks: %d\n", stats.chunks);
+        output.printf("Stored bytes: %d\n", stats.storedBytes);
+        output.printf("Commits: %d\n", graph.size());
+        output.printf("Branches: %d\n", refs.getBranches().size());
+        if (!stats.largestBlobs.isEmpty()) {
+            output.println("Largest blobs:");
+            for (MyGitStats.Blob blob : stats.largestBlobs) {
+                output.printf("    %s %d bytes\n", blob.hash, blob.size);
+            }
+        }
+    }
+
+    private boolean checkCounter(String name, long recorded, long counted) {
+        if (recorded != counted) {
+            output.printf("%s: recorded %d, counted %d\n", name, recorded, counted);
+        }
+        return recorded == counted;
+    }
+
+    private Node getRootNode() {
+        Node root = curNode;
+        while (root.parent != null) {
+            root = root.parent;
+        }
+        return root;
+    }
+
+    /*
+     * Sends commits of the branch which the target lacks with their objects, then fast-forwards the branch there.
+     */
+    private void sendBranch(MyGitRepository target, String branch, boolean updateWorktree) throws GitException {
+        if (metainf == null || target.metainf == null) {
+            throw new GitException("Not a myGit repository: " + (metainf == null ? directory : target.directory));
+        }
+        if (!objects.getHashFunction().getName().equals(target.objects.getHashFunction().getName())) {
+            throw new GitException("Repositories use different hash functions");
+        }
+        String head = refs.get(branch);
+        if (head == null) {
+            throw new GitException("No such branch " + branch);
+        }
+        List<Node> missing = getMissingCommits(graph.get(head), target);
+        Set<String> missingObjects = new LinkedHashSet<>();
+        Set<String> checked = new HashSet<>();
+        for (Node nd : missing) {
+            for (String hash : nd.commit.getFiles().values()) {
+                if (checked.add(hash) && !target.objects.contains(hash)) {
+                    missingObjects.add(hash);
+                }
+            }
+        }
+        try {
+            // Objects go first, a commit is added only when all its files are there
+            for (String hash : missingObjects) {
+                try (InputStream in = objects.newInputStream(hash)) {
+                    String storedHash = target.objects.store(in, objects.size(hash));
+                    if (!storedHash.equals(hash)) {
+                        throw new GitException("Object " + hash + " is corrupted, its content has hash " + storedHash);
+                    }
+                }
+            }
+            for (Node nd : missing) {
+                // Paths are re-rooted into the target through the serialized form
+                MyGitCommit commit = target.mapper.readValue(mapper.writeValueAsBytes(nd.commit), MyGitCommit.class);
+                target.checkReceivedCommit(commit, nd.commit.getHash());
+                target.addCommit(commit);
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't transfer objects", e);
+        }
+        target.fastForward(branch, head, updateWorktree);
+        output.printf("Transferred %d commits, %d objects\n", missing.size(), missingObjects.size());
+    }
+
+    /*
+     * Have/want negotiation: heads of the target which this repository knows give the common history at once,
+     * the rest of the wanted history is offered in batches until the target answers that it has a commit.
+     * A repository has all ancestors of its commits, so everything below such a commit is common too.
+     * Returns the missing commits, parents first.
+     */
+    private List<Node> getMissingCommits(Node want, MyGitRepository target) {
+        Node base = null;
+        for (String have : target.getHaves()) {
+            Node common = graph.containsKey(have) ? getMergeBase(graph.get(have), want) : null;
+            if (common != null && (base == null || common.getDepth() > base.getDepth())) {
+                base = common;
+            }
+        }
+        List<Node> missing = new ArrayList<>();
+        Node nd = want;
+        while (nd != base) {
+            List<Node> batch = new ArrayList<>();
+            for (Node next = nd; next != base && batch.size() < NEGOTIATION_BATCH; next = next.parent) {
+                batch.add(next);
+            }
+            Set<String> had = target.getKnownCommits(batch.stream().map(node -> node.commit.getHash()).collect(Collectors.toList()));
+            for (Node node : batch) {
+                if (had.contains(node.commit.getHash())) {
+                    Collections.reverse(missing);
+                    return missing;
+                }
+                missing.add(node);
+            }
+            nd = batch.get(batch.size() - 1).parent;
+        }
+        Collections.reverse(missing);
+        return missing;
+    }
+
+    private Set<String> getHaves() {
+        Set<String> haves = new LinkedHashSet<>(refs.getBranches().values());
+        haves.add(metainf.headCommitHash);
+        return haves;
+    }
+
+    private Set<String> getKnownCommits(List<String> hashes) {
+        return hashes.stream().filter(graph::containsKey).collect(Collectors.toSet());
+    }
+
+    // A received commit is added only when its parent and all its files are already in the repository
+    private void checkReceivedCommit(MyGitCommit commit, String hash) throws GitException {
+        if (!hash.equals(commit.getHash())) {
+            throw new GitException("Corrupted commit " + hash + ": it is named " + commit.getHash());
+        }
+        if (commit.getParentHash() != null && !graph.containsKey(commit.getParentHash())) {
+            throw new GitException("Parent of commit " + hash + " is missing");
+        }
+        for (String object : commit.getFiles().values()) {
+            if (!objects.contains(object)) {
+                throw new GitException("Object " + object + " of commit " + hash + " is missing");
+            }
+        }
+    }
+
+    private void addCommit(MyGitCommit commit) throws GitException {
+        Node node = new Node(commit);
+        node.parent = graph.get(commit.getParentHash());
+        try {
+            writeJson(Path.of(commitsDir + "/" + commit.getHash() + ".json"), commit);
+        } catch (IOException e) {
+            throw new GitException("Can't write commit " + commit.getHash(), e);
+        }
+        graph.put(commit.getHash(), node);
+        commitIndex.add(commit.getHash());
+    }
+
+    /*
+     * Moves the branch to the commit if it only goes forward. A branch checked out here takes the working
+     * directory with it when updateWorktree is set, one checked out in another worktree is left alone.
+     */
+    private void fastForward(String branch, String hash, boolean updateWorktree) throws GitException {
+        String current = refs.get(branch);
+        if (hash.equals(current)) {
+            output.printf("Branch %s is up to date\n", branch);
+            return;
+        }
+        Node target = graph.get(hash);
+        if (current != null && !isAncestor(graph.get(current), target) && !isEmptyRoot(graph.get(current))) {
+            output.printf("Branch %s not updated: not a fast-forward\n", branch);
+            return;
+        }
+        for (var entry : getOtherWorktreeHeads().entrySet()) {
+            if (branch.equals(entry.getValue().currentBranch)) {
+                output.printf("Branch %s not updated: it is checked out in worktree %s\n", branch, entry.getKey());
+                return;
+            }
+        }
+        if (branch.equals(metainf.currentBranch) && !isHeadDetached()) {
+            if (!updateWorktree) {
+                output.printf("Branch %s not updated: it is checked out in the receiving repository\n", branch);
+                return;
+            }
+            if (!index.isEmpty()) {
+                output.printf("Branch %s not updated: it is checked out and has staged changes\n", branch);
+                return;
+            }
+            List<String> overwritten = getOverwrittenChanges(curNode.commit, target.commit);
+            if (!overwritten.isEmpty()) {
+                output.printf("Branch %s not updated: local changes to %s would be overwritten\n", branch,
+                        String.join(", ", overwritten));
+                return;
+            }
+            curNode = target;
+            metainf.headCommitHash = hash;
+            updateDirectoryByCommit(target.commit, "Can't update working directory");
+        }
+        refs.set(branch, hash);
+        output.printf("Branch %s updated\n", branch);
+    }
+
+    // The commit init makes in an empty directory, a branch holding only it has nothing to lose when replaced
+    private static boolean isEmptyRoot(Node node) {
+        return node.commit.getParentHash() == null && node.commit.getFiles().isEmpty();
+    }
+
+    /*
+     * Paths which differ between the commits and whose working copy, or its absence, differs from the first one.
+     * Moving the working directory from one commit to the other would lose what is there.
+     */
+    private List<String> getOverwrittenChanges(MyGitCommit from, MyGitCommit to) throws GitException {
+        Set<Path> paths = new HashSet<>(from.getFiles().keySet());
+        paths.addAll(to.getFiles().keySet());
+        List<String> overwritten = new ArrayList<>();
+        for (Path path : paths) {
+            String fromHash = from.getFiles().getOrDefault(path, "");
+            if (fromHash.equals(to.getFiles().getOrDefault(path, "")) || !isInCone(path)) {
+                continue;
+            }
+            if (!getFileHash(path).equals(fromHash)) {
+                overwritten.add(relativePath(path));
+            }
+        }
+        Collections.sort(overwritten);
+        return overwritten;
+    }
+
+    private static boolean isAncestor(Node ancestor, Node node) {
+        if (ancestor == null || node == null) {
+            return false;
+        }
+        while (node != null && node.getDepth() > ancestor.getDepth()) {
+            node = node.parent;
+        }
+        return node == ancestor;
+    }
+
+    // The latest commit which both have, null if their histories don't meet
+    private static Node getMergeBase(Node first, Node second) {
+        while (first != second) {
+            int firstDepth = first.getDepth();
+            int secondDepth = second.getDepth();
+            if (firstDepth >= secondDepth) {
+                first = first.parent;
+            }
+            if (secondDepth >= firstDepth) {
+                second = second.parent;
+            }
+            if (first == null || second == null) {
+                return null;
+            }
+        }
+        return first;
+    }
+
+    // Every commit has its parent and its files, branches and heads point at existing commits
+    private List<String> checkHistory() throws GitException {
+        List<String> problems = new ArrayList<>();
+        Map<String, Boolean> present = new HashMap<>();
+        for (Node node : graph.values()) {
+            MyGitCommit commit = node.commit;
+            if (commit.getParentHash() != null && node.parent == null && !shallow.contains(commit.getHash())) {
+                problems.add(String.format("commit %s: parent %s is missing", commit.getHash(), commit.getParentHash()));
+            }
+            for (var entry : commit.getFiles().entrySet()) {
+                if (!present.computeIfAbsent(entry.getValue(), objects::contains)) {
+                    problems.add(String.format("commit %s: object %s of %s is missing", commit.getHash(), entry.getValue(),
+                            directory.relativize(entry.getKey())));
+                }
+            }
+        }
+        for (var branch : refs.getBranches().entrySet()) {
+            if (!graph.containsKey(branch.getValue())) {
+                problems.add(String.format("branch %s: commit %s is missing", branch.getKey(), branch.getValue()));
+            }
+        }
+        if (!graph.containsKey(metainf.headCommitHash)) {
+            problems.add(String.format("HEAD: commit %s is missing", metainf.headCommitHash));
+        }
+        if (metainf.currentBranch != null && !refs.contains(metainf.currentBranch)) {
+            problems.add(String.format("HEAD: branch %s is missing", metainf.currentBranch));
+        }
+        for (var worktree : getOtherWorktreeHeads().entrySet()) {
+            if (!graph.containsKey(worktree.getValue().headCommitHash)) {
+                problems.add(String.format("worktree %s: commit %s is missing", worktree.getKey(), worktree.getValue().headCommitHash));
+            }
+        }
+        Collections.sort(problems);
+        return problems;
+    }
+
+    // "100", "64K", "10M", "1G"
+    private static double parseSize(String size) {
+        String units = "KMG";
+        int unit = size.isEmpty() ? -1 : units.indexOf(Character.toUpperCase(size.charAt(size.length() - 1)));
+        double value = Double.parseDouble(unit < 0 ? size : size.substring(0, size.length() - 1));
+        return value * (1L << (10 * (unit + 1)));
+    }
+
+    private boolean isHeadDetached() {
+        return metainf.currentBranch == null || !metainf.headCommitHash.equals(refs.get(metainf.currentBranch));
+    }
+
+    // Repositories created before packed-refs kept branches in metainf
+    private void migrateBranches() throws GitException {
+        refs.setAll(metainf.branches);
+        if (metainf.currentBranch == null && curNode != null
+                && metainf.headCommitHash.equals(metainf.branches.get(curNode.commit.getBranch()))) {
+            metainf.currentBranch = curNode.commit.getBranch();
+        }
+        metainf.branches = null;
+    }
+
+    private MyGitIgnore newIgnore() {
+        return new MyGitIgnore(directory, myGitDir, cone);
+    }
+
+    private boolean isInCone(Path path) {
+        return cone == null || cone.contains(path);
+    }
+
+    private void checkInCone(List<String> arguments, String message) throws GitException {
+        for (String argument : arguments) {
+            Path path = Path.of(directory + "/" + argument);
+            boolean inCone = path.toFile().isDirectory() ? cone == null || cone.mayContain(path) : isInCone(path);
+            if (!inCone) {
+                output.println(message);
+                throw new GitException("Path " + argument + " is outside of the sparse-checkout cone");
+            }
+        }
+    }
+
+    // Unmodified files of the commit which are not in the new cone are removed from the working directory
+    private void removeFilesOutsideCone(MyGitCommit commit, MyGitSparseCheckout newCone, String message) throws GitException {
+        try {
+            for (var entry : commit.getFiles().entrySet()) {
+                Path path = entry.getKey();
+                if (isInCone(path) && !newCone.contains(path) && Files.exists(path)
+                        && commit.containsFile(path, getFileHash(path))) {
+                    Files.delete(path);
+                    deleteEmptyParents(path);
+                }
+            }
+        } catch (IOException e) {
+            output.println(message);
+            throw new GitException("Can't remove files outside of the sparse-checkout cone", e);
+        }
+    }
+
+    private void deleteEmptyParents(Path path) throws IOException {
+        for (Path dir = path.getParent(); dir != null && !dir.equals(directory) && dir.startsWith(directory); dir = dir.getParent()) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                if (stream.iterator().hasNext()) {
+                    return;
+                }
+            }
+            Files.delete(dir);
+        }
+    }
+
+    private void materializeMissingFiles(MyGitCommit commit, String message) throws GitException {
+        try {
+            for (var entry : commit.getFiles().entrySet()) {
+                Path path = entry.getKey();
+                if (isInCone(path) && !Files.exists(path)) {
+                    Files.createDirectories(path.getParent());
+                    objects.copyTo(entry.getValue(), path);
+                }
+            }
+        } catch (IOException | GitException e) {
+            output.println(message);
+            throw new GitException("Can't copy files from .myGit", e);
+        }
+    }
+
+    private boolean isMyGitDirectory() {
+        return Files.exists(metainfPath);
+    }
+
+    /*
+     * Reads the repository. One written by an older version is upgraded on the way, which writes files,
+     * so without the write lock such a repository is not read and false is returned.
+     */
+    private boolean load(boolean writable) throws GitException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(commitsDir, "*.json")) {
+            MetaInf read = mapper.readValue(metainfPath.toFile(), MetaInf.class);
+            if (!writable && (read.branches != null || !commitIndex.exists())) {
+                return false;
+            }
+            metainf = read;
+            metainfJson = writer.writeValueAsString(metainf);
+            stamp = getStamp();
+            objects = createObjectStore();
+            statsStamp = null;
+            refreshStats();
+            List<MyGitCommit> commits = new ArrayList<>();
+            absolutePathCommits.clear();
+            for (Path path : stream) {
+                if (path.getFileName().toString().startsWith(TEMP_PREFIX)) {
+                    continue;
+                }
+                absolutePathsRead = false;
+                MyGitCommit commit = mapper.readValue(Paths.get(path.toUri()).toFile(), MyGitCommit.class);
+                if (absolutePathsRead) {
+                    absolutePathCommits.add(commit.getHash());
+                }
+                commits.add(commit);
+            }
+            graph.clear();
+            for (var commit : commits) {
+                graph.put(commit.getHash(), new Node(commit));
+            }
+            for (var node : graph.entrySet()) {
+                node.getValue().parent = graph.get(node.getValue().commit.getParentHash());
+            }
+            curNode = graph.get(metainf.headCommitHash);
+            commitIndex.open(graph.keySet());
+            refs.load();
+            worktrees.load();
+            shallow.clear();
+            if (Files.exists(shallowPath)) {
+                shallow.addAll(Files.readAllLines(shallowPath, StandardCharsets.US_ASCII));
+                shallow.remove("");
+            }
+            if (metainf.branches != null) {
+                migrateBranches();
+            }
+            cone = MyGitSparseCheckout.load(directory, sparseCheckoutPath);
+            return true;
+        } catch (IOException e) {
+            throw new GitException("Can't get MyGit information", e);
+        }
+    }
+
+    // Readers of a partial clone add what they fetch to stats.json without changing the stamp
+    private void refreshStats() throws GitException {
+        try {
+            String current = Files.exists(statsPath) ? getFileStamp(statsPath) : "-";
+            if (!current.equals(statsStamp)) {
+                stats = Files.exists(statsPath) ? mapper.readValue(statsPath.toFile(), MyGitStats.class) : null;
+                objects.setStats(stats);
+                statsStamp = current;
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't read stats", e);
+        }
+    }
+
+    /*
+     * Counters of the objects a reader fetched are added to stats.json as it is then. Readers of other
+     * processes do the same under the fetch lock, writers exclude readers anyway.
+     */
+    private void saveFetched() throws GitException {
+        MyGitStats fetched = objects.takeFetched();
+        if (!fetched.takeChanged()) {
+            return;
+        }
+        fetchLock.lockWrite();
+        try {
+            synchronized (this) {
+                if (!Files.exists(statsPath)) {
+                    return;
+                }
+                MyGitStats saved = mapper.readValue(statsPath.toFile(), MyGitStats.class);
+                saved.add(fetched);
+                saved.takeChanged();
+                writeJson(statsPath, saved);
+                stats = saved;
+                objects.setStats(stats);
+                statsStamp = getFileStamp(statsPath);
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't update stats", e);
+        } finally {
+            fetchLock.unlockWrite();
+        }
+    }
+
+    // Left by a process which died while writing, no other writer runs under the write lock
+    private void deleteTempFiles() throws GitException {
+        for (Path dir : List.of(commitsDir, commonDir, myGitDir)) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, TEMP_PREFIX + "*.json")) {
+                for (Path path : stream) {
+                    Files.deleteIfExists(path);
+                }
+            } catch (IOException e) {
+                throw new GitException("Can't delete temporary files", e);
+            }
+        }
+    }
+
+    // Commits and branches may also be changed from another worktree, which writes only its own metainf
+    private String getStamp() throws IOException {
+        StringBuilder result = new StringBuilder();
+        for (String name : List.of("packed-refs", "commit-index", "commit-index.journal", "shallow", "worktrees")) {
+            Path path = Path.of(commonDir + "/" + name);
+            result.append(Files.exists(path) ? getFileStamp(path) : "-").append(';');
+        }
+        result.append(Files.exists(sparseCheckoutPath) ? getFileStamp(sparseCheckoutPath) : "-").append(';');
+        return result.append(getFileStamp(metainfPath)).toString();
+    }
+
+    private static String getFileStamp(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return attributes.fileKey() + " " + attributes.lastModifiedTime() + " " + attributes.size();
+    }
+
+    // Another process or worktree changed the repository since this one read or wrote it
+    private boolean isStale() throws GitException {
+        if (metainf == null) {
+            // Not loaded yet, an existing repository is read by the first command
+            return isMyGitDirectory();
+        }
+        try {
+            return !getStamp().equals(stamp);
+        } catch (IOException e) {
+            throw new GitException("Can't read metainf", e);
+        }
+    }
+
+    /*
+     * Files are written next to their place and renamed into it,
+     * so a concurrent reader sees either the old or the new version.
+     */
+    private void writeJson(Path path, Object value) throws IOException {
+        Path temp = MyGitFiles.createTempFile(path.getParent(), TEMP_PREFIX, ".json");
+        try {
+            writer.writeValue(temp.toFile(), value);
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private void readLocked(GitCommand command) throws GitException {
+        readLocked(null, command);
+    }
+
+    /*
+     * Changes made by other processes are read under the shared lock, nothing but stats.json is written.
+     * A repository which needs an upgrade is upgraded under the write lock first. A partial clone fetches
+     * the objects a read needs, they are counted in stats.json and evicted by the next write.
+     * A commit given by its full hash which this object has read already needs no check for changes.
+     */
+    private void readLocked(String knownCommit, GitCommand command) throws GitException {
+        while (true) {
+            boolean loaded;
+            lock.lockRead();
+            try {
+                // Threads sharing this repository object load it once
+                synchronized (this) {
+                    boolean known = knownCommit != null && metainf != null && graph.containsKey(knownCommit);
+                    loaded = known || !isStale() || load(false);
+                    if (loaded && !known && objects != null) {
+                        refreshStats();
+                    }
+                }
+                if (loaded) {
+                    try {
+                        command.run();
+                    } finally {
+                        // A writer of this thread saves the counters with the rest
+                        if (objects != null && objects.isPartial() && !lock.isWriteLockedByCurrentThread()) {
+                            saveFetched();
+                        }
+                    }
+                    return;
+                }
+            } finally {
+                lock.unlockRead();
+            }
+            writeLocked(() -> {});
+        }
+    }
+
+    /*
+     * Metainf is written only when the command changed it. Other shared files are a part of the stamp,
+     * so other processes notice their changes anyway.
+     */
+    private void writeLocked(GitCommand command) throws GitException {
+        lock.lockWrite();
+        try {
+            if (isStale()) {
+                load(true);
+            } else if (objects != null) {
+                refreshStats();
+            }
+            if (!tempFilesDeleted && metainf != null) {
+                deleteTempFiles();
+                tempFilesDeleted = true;
+            }
+            command.run();
+            if (objects != null && cacheLimit > 0) {
+                objects.evict(cacheLimit);
+            }
+            if (objects != null) {
+                // Counted in the stats this writer saves whole
+                objects.takeFetched();
+            }
+            if (stats != null && stats.takeChanged()) {
+                writeStats();
+            }
+            if (metainf != null) {
+                if (!writer.writeValueAsString(metainf).equals(metainfJson)) {
+                    writeMetainf();
+                } else {
+                    stamp = getStamp();
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't update metainf", e);
+        } finally {
+            lock.unlockWrite();
+        }
+    }
+
+    private String getFileHash(Path path) throws GitException {
+        if (!Files.exists(path) || path.toFile().isDirectory()) {
+            return "";
+        }
+        return objects.hash(path);
+    }
+
     private boolean isDeletedFile(Path path, MyGitCommit commit) {
         return commit.containsName(path) && !Files.exists(path);
     }
 
-    private void addFileIfUntracked(Path path, MyGitCommit commit, List<Path> uNewFiles, List<Path> uModFiles, Set<Path> uDelFiles)
-            throws GitException {
+    private void addFileIfUntracked(Path path, MyGitCommit commit, Map<Path, String> uNewFiles, Map<Path, String> uModFiles,
+                                    Set<Path> uDelFiles) throws GitException {
         String hash = getFileHash(path);
         if (!commit.containsName(path) && !index.containsName(path)) {
-            uNewFiles.add(path);
+            uNewFiles.put(path, hash);
         } else if (isDeletedFile(path, commit)) {
             uDelFiles.add(path);
         } else if (commit.containsName(path) && !commit.containsFile(path, hash)
                 && !index.containsFile(path, hash)) {
-            uModFiles.add(path);
+            uModFiles.put(path, hash);
+        }
+    }
+
+    // One entry per path with the change in the index and in the working directory, sorted by path
+    private void printStatusEntries(MyGitPorcelain.Format format, MyGitCommit commit, Map<Path, String> stagedNewFiles,
+                                    Map<Path, String> stagedDeletedFiles, List<MyGitRenames.Rename> stagedRenames,
+                                    Map<Path, String> untrackedNewFiles, Map<Path, String> untrackedModifiedFiles,
+                                    Set<Path> untrackedDeletedFiles, List<MyGitRenames.Rename> untrackedRenames)
+            throws GitException {
+        SortedMap<String, MyGitPorcelain.StatusEntry> entries = new TreeMap<>();
+        Function<Path, MyGitPorcelain.StatusEntry> entry = path -> entries.computeIfAbsent(relativePath(path),
+                name -> new MyGitPorcelain.StatusEntry(name).setHeadHash(commit.getFiles().get(path)));
+        stagedNewFiles.forEach((path, hash) -> entry.apply(path).setIndex('A', hash));
+        index.getModifiedFiles().forEach((path, hash) -> entry.apply(path).setIndex('M', hash));
+        stagedDeletedFiles.keySet().forEach(path -> entry.apply(path).setIndex('D', null));
+        for (MyGitRenames.Rename rename : stagedRenames) {
+            entry.apply(rename.getTo()).setIndex(rename.isCopy() ? 'C' : 'R', index.getFileHash(rename.getTo()))
+                    .setFrom(relativePath(rename.getFrom()));
+        }
+        untrackedNewFiles.forEach((path, hash) -> entry.apply(path).setIndex('?', null).setWorktree('?', hash));
+        untrackedModifiedFiles.forEach((path, hash) -> entry.apply(path).setWorktree('M', hash));
+        untrackedDeletedFiles.forEach(path -> entry.apply(path).setWorktree('D', null));
+        for (MyGitRenames.Rename rename : untrackedRenames) {
+            entry.apply(rename.getTo()).setWorktree(rename.isCopy() ? 'C' : 'R', getFileHash(rename.getTo()))
+                    .setFrom(relativePath(rename.getFrom()));
+        }
+        try (MyGitPorcelain porcelain = new MyGitPorcelain(output, format)) {
+            for (MyGitPorcelain.StatusEntry statusEntry : entries.values()) {
+                porcelain.status(statusEntry);
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't write status", e);
         }
     }
 
+    private String relativePath(Path path) {
+        return directory.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
     private void printFiles(Collection<Path> files, String message) {
         if (!files.isEmpty()) {
             output.println(message);
@@ -406,6 +2845,21 @@ public class MyGitRepository {
         }
     }
 
+    // Paths are relative to the root, a rename often moves a file to another directory
+    private void printRenames(List<MyGitRenames.Rename> renames) {
+        for (boolean copies : new boolean[]{false, true}) {
+            List<MyGitRenames.Rename> shown = renames.stream().filter(rename -> rename.isCopy() == copies).collect(Collectors.toList());
+            if (!shown.isEmpty()) {
+                output.println(copies ? "Copied files:" : "Renamed files:");
+                for (MyGitRenames.Rename rename : shown) {
+                    output.printf("    %s -> %s", directory.relativize(rename.getFrom()), directory.relativize(rename.getTo()));
+                    output.println(rename.getSimilarity() < 100 ? " (" + rename.getSimilarity() + "%)" : "");
+                }
+                output.println();
+            }
+        }
+    }
+
     private MyGitFileMode getFileMode(Path path) {
         MyGitCommit commit = curNode.commit;
         if (isDeletedFile(path, commit)) {
@@ -414,45 +2868,25 @@ public class MyGitRepository {
         return commit.containsName(path) ? MyGitFileMode.MODIFIED : MyGitFileMode.NEW;
     }
 
-    private void addFileToIndex(Path path, String hash) {
-        String prevHash = index.add(path, hash, getFileMode(path));
-        try {
-            if (prevHash != null) {
-                Path oldFile = Path.of(filesDir + "/" + prevHash);
-                Files.delete(oldFile);
-            }
-            if (Files.exists(path)) {
-                Path pathMyGit = Path.of(filesDir + "/" + hash);
-                Files.copy(path, pathMyGit);
-            }
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
-    private void rmFileFromIndex(Path path) throws GitException {
-        Path file = Path.of(filesDir + "/" + index.getFileHash(path));
-        try {
-            Files.delete(file);
-        } catch (IOException e) {
-            String message = "Can't remove file";
-            output.println(message);
-            throw new GitException(message, e);
+    private void addFileToIndex(Path path) throws GitException {
+        if (path.toFile().isDirectory()) {
+            return;
         }
-        index.delete(path);
+        // Hashing and storing is a single pass over the file, an already stored object is not written again
+        String hash = Files.exists(path) ? objects.store(path) : "";
+        index.add(path, hash, getFileMode(path));
     }
 
-    private void walk(@NotNull List<@NotNull String> arguments, String message, BiPredicate<Path, String> predicate, Consumer<Path> func)
+    private void walk(@NotNull List<@NotNull String> arguments, String message, Predicate<Path> predicate, Consumer<Path> func)
             throws GitException {
         for (String p : arguments) {
             Path path = Path.of(directory + "/" + p);
-            String hash = getFileHash(path);
-            if (predicate.test(path, hash)) {
-                continue;
-            }
             try {
+                if (predicate.test(path)) {
+                    continue;
+                }
                 if (path.toFile().isDirectory()) {
-                    Files.walk(path).forEach(func);
+                    newIgnore().walk(path, func);
                 } else {
                     func.accept(path);
                 }
@@ -469,47 +2903,59 @@ public class MyGitRepository {
     }
 
     private void updateDirectoryByCommit(MyGitCommit commit, String message) throws GitException {
-        List<String> args = new LinkedList<>();
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
-            for (Path path : stream) {
-                if (!path.equals(myGitDir)) {
-                    args.add(path.getFileName().toString());
+        // Ignored files and directories are left untouched
+        try {
+            newIgnore().walk(directory, path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
                 }
-            }
-        } catch (IOException e) {
+            }, dir -> {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    if (!dir.equals(directory) && !stream.iterator().hasNext()) {
+                        Files.delete(dir);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        } catch (IOException | RuntimeException e) {
             output.println(message);
-            throw new GitException("Can't delete file from myGit repo", e);
-        }
-        walk(args, message, (path, hash) -> false, path -> {
-            try {
-                Files.delete(path);
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+            String mes = "Can't delete file from myGit repo";
+            if (e.getClass() == RuntimeException.class) {
+                throw new GitException(mes, e.getCause());
+            } else {
+                throw new GitException(mes, e);
             }
-        });
+        }
         try {
+            List<String> needed = new ArrayList<>();
+            for (var entry : commit.getFiles().entrySet()) {
+                if (isInCone(entry.getKey())) {
+                    needed.add(entry.getValue());
+                }
+            }
+            objects.prefetch(needed, FETCH_THREADS);
             for (var entry : commit.getFiles().entrySet()) {
                 Path pathTarget = entry.getKey();
-                Path pathSource = Path.of(filesDir + "/" + entry.getValue());
+                if (!isInCone(pathTarget)) {
+                    continue;
+                }
                 if (!(Files.exists(pathTarget) && commit.containsFile(pathTarget, getFileHash(pathTarget)))) {
-                    Files.copy(pathSource, pathTarget);
+                    Files.createDirectories(pathTarget.getParent());
+                    objects.copyTo(entry.getValue(), pathTarget);
                 }
             }
-        } catch (IOException e) {
+        } catch (IOException | GitException e) {
             output.println(message);
             throw new GitException("Can't copy files from .myGit", e);
         }
     }
 
-    private void makeCommit(String message, String branchName) throws GitException {
+    private void makeCommit(String message) throws GitException {
         MyGitCommit parentCommit = curNode.commit;
-        MyGitCommit commit = new MyGitCommit(message, parentCommit, index, branchName);
-        Map<String, String> branches = metainf.branches;
-        if (!branches.containsKey(branchName)) {
-            branches.put(branchName, commit.getHash());
-        } else {
-            branches.put(curNode.commit.getBranch(), commit.getHash());
-        }
+        MyGitCommit commit = new MyGitCommit(message, parentCommit, index, metainf.currentBranch);
         index.clear();
         Node prevNode = curNode;
         curNode = new Node(commit);
@@ -517,51 +2963,113 @@ public class MyGitRepository {
         graph.put(commit.getHash(), curNode);
         metainf.headCommitHash = commit.getHash();
         try {
-            writer.writeValue(Paths.get(commitsDir + "/" + commit.getHash() + ".json").toFile(), commit);
-            writer.writeValue(metainfPath.toFile(), metainf);
+            writeJson(Paths.get(commitsDir + "/" + commit.getHash() + ".json"), commit);
+            commitIndex.add(commit.getHash());
+            if (metainf.currentBranch != null) {
+                refs.set(metainf.currentBranch, commit.getHash());
+            }
+            writeMetainf();
         } catch (IOException e) {
             throw new GitException("Can't create commit", e);
         }
     }
 
+    private void writeStats() throws GitException {
+        try {
+            writeJson(statsPath, stats);
+            statsStamp = getFileStamp(statsPath);
+        } catch (IOException e) {
+            throw new GitException("Can't update stats", e);
+        }
+    }
+
     private void writeMetainf() throws GitException {
         try {
-            writer.writeValue(metainfPath.toFile(), metainf);
+            writeJson(metainfPath, metainf);
+            metainfJson = writer.writeValueAsString(metainf);
+            stamp = getStamp();
         } catch (IOException e) {
             throw new GitException("Can't update metainf", e);
         }
     }
 
-    private void deleteLastCommits(String toRevision, String outMes) throws GitException {
+    /*
+     * The commit reset moves HEAD to. Commits above it which no other branch or worktree keeps go to removed.
+     */
+    private Node findResetTarget(String toRevision, List<Node> removed) throws GitException {
         String flagHash = "";
         int flagInt = Integer.MAX_VALUE;
         if (toRevision.startsWith("HEAD~")) {
             flagInt = Integer.parseInt(toRevision.substring(5));
         } else if (!toRevision.equals("master")) {
-            flagHash = toRevision;
+            flagHash = resolveRevision(toRevision);
         }
-        while (!flagHash.equals(curNode.commit.getHash()) && flagInt > 0) {
-            if (curNode.parent == null) {
-                throw new GitException("To long reset");
+        List<Node> above = new ArrayList<>();
+        Node target = curNode;
+        while (!flagHash.equals(target.commit.getHash()) && flagInt > 0) {
+            if (target.parent == null) {
+                throw new GitException(shallow.contains(target.commit.getHash())
+                        ? "Can't reset past the shallow boundary at commit " + target.commit.getHash() : "To long reset");
             }
-            MyGitCommit commit = curNode.commit;
-            MyGitCommit parentCommit = curNode.parent.commit;
-            try {
-                for (var entry : commit.getFiles().entrySet()) {
-                    Path filePath = entry.getKey();
-                    String hash = entry.getValue();
-                    if (commit.containsFile(filePath, hash) && !parentCommit.containsFile(filePath, hash)) {
-                        Path path = Path.of(filesDir + "/" + hash);
-                        Files.delete(path);
-                    }
-                }
+            above.add(target);
+            target = target.parent;
+            flagInt--;
+        }
+        Set<Node> kept = getNodesKeptByOtherBranches(new HashSet<>(above), target);
+        for (Node node : above) {
+            if (!kept.contains(node)) {
+                removed.add(node);
+            }
+        }
+        return target;
+    }
+
+    /*
+     * Commits are deleted before objects. Objects the removed commits introduced are deleted
+     * unless a remaining commit or a staged file refers to them as well.
+     */
+    // Their objects stay until gc, other worktrees may have staged the same contents
+    private void deleteCommits(List<Node> removed, String outMes) throws GitException {
+        try {
+            for (Node node : removed) {
+                MyGitCommit commit = node.commit;
                 Files.delete(Path.of(commitsDir + "/" + commit.getHash() + ".json"));
-            } catch (IOException e) {
-                output.println(outMes);
-                throw new GitException("Can't delete file from myGit repository", e);
+                commitIndex.remove(commit.getHash());
+                graph.remove(commit.getHash());
+            }
+            new MyGitBlame(objects, blameDir).deleteUnusedEntries(graph.keySet());
+        } catch (IOException | GitException e) {
+            output.println(outMes);
+            throw new GitException("Can't delete file from myGit repository", e);
+        }
+    }
+
+    /*
+     * Commits in removed which other branches or heads of other worktrees still contain. Only the part
+     * of their history above the target is walked, so the cost doesn't depend on the length of the whole history.
+     */
+    private Set<Node> getNodesKeptByOtherBranches(Set<Node> removed, Node target) throws GitException {
+        Set<Node> kept = new HashSet<>();
+        Set<Node> visited = new HashSet<>();
+        int targetDepth = target.getDepth();
+        List<String> heads = new ArrayList<>();
+        for (var branch : refs.getBranches().entrySet()) {
+            if (!branch.getKey().equals(metainf.currentBranch)) {
+                heads.add(branch.getValue());
+            }
+        }
+        for (MetaInf head : getOtherWorktreeHeads().values()) {
+            heads.add(head.headCommitHash);
+        }
+        for (String hash : heads) {
+            Node nd = graph.get(hash);
+            while (nd != null && nd.getDepth() > targetDepth && visited.add(nd)) {
+                if (removed.contains(nd)) {
+                    kept.add(nd);
+                }
+                nd = nd.parent;
             }
-            curNode = curNode.parent;
-            flagInt--;
         }
+        return kept;
     }
 }
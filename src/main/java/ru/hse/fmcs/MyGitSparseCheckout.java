@@ -0,0 +1,127 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Sparse-checkout cone: the part of the tree which is materialized in the working directory.
+ * Patterns are path prefixes ("src/app") or globs ("docs/*.md") relative to the repository root,
+ * they are kept one per line in myGit/sparse-checkout.
+ */
+public class MyGitSparseCheckout {
+    private static final String WILDCARDS = "*?[{";
+
+    private final Path root;
+    private final List<String> patterns;
+    private final List<Path> prefixes = new ArrayList<>();
+    private final List<PathMatcher> globs = new ArrayList<>();
+    private final List<Path> globBases = new ArrayList<>(); // Literal directories in front of the wildcards
+
+    public MyGitSparseCheckout(@NotNull Path root, @NotNull List<@NotNull String> patterns) throws GitException {
+        this.root = root;
+        this.patterns = new ArrayList<>(patterns);
+        try {
+            for (String pattern : patterns) {
+                String normalized = pattern.replaceAll("^/+|/+$", "");
+                if (normalized.chars().noneMatch(c -> WILDCARDS.indexOf(c) >= 0)) {
+                    prefixes.add(Path.of(normalized));
+                    continue;
+                }
+                globs.add(FileSystems.getDefault().getPathMatcher("glob:" + normalized));
+                Path base = Path.of("");
+                for (String part : normalized.split("/")) {
+                    if (part.chars().anyMatch(c -> WILDCARDS.indexOf(c) >= 0)) {
+                        break;
+                    }
+                    base = base.resolve(part);
+                }
+                globBases.add(base);
+            }
+        } catch (IllegalArgumentException e) {
+            throw new GitException("Wrong sparse-checkout pattern", e);
+        }
+    }
+
+    public static MyGitSparseCheckout load(@NotNull Path root, @NotNull Path file) throws GitException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            List<String> patterns = new ArrayList<>();
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    patterns.add(line.strip());
+                }
+            }
+            return new MyGitSparseCheckout(root, patterns);
+        } catch (IOException e) {
+            throw new GitException("Can't read sparse-checkout configuration", e);
+        }
+    }
+
+    public void save(@NotNull Path file) throws GitException {
+        try {
+            Files.write(file, patterns, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new GitException("Can't write sparse-checkout configuration", e);
+        }
+    }
+
+    public @NotNull List<String> getPatterns() {
+        return patterns;
+    }
+
+    /*
+     * Whether the file belongs to the cone.
+     */
+    public boolean contains(@NotNull Path path) {
+        Path relative = relativize(path);
+        if (relative == null) {
+            return false;
+        }
+        for (Path prefix : prefixes) {
+            if (relative.startsWith(prefix)) {
+                return true;
+            }
+        }
+        for (PathMatcher glob : globs) {
+            if (glob.matches(relative)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Whether some file of the cone may lie under the directory, others are pruned from walks.
+     */
+    public boolean mayContain(@NotNull Path dir) {
+        Path relative = relativize(dir);
+        if (relative == null) {
+            return false;
+        }
+        if (relative.toString().isEmpty()) {
+            return true;
+        }
+        for (Path prefix : prefixes) {
+            if (relative.startsWith(prefix) || prefix.startsWith(relative)) {
+                return true;
+            }
+        }
+        for (Path base : globBases) {
+            if (base.toString().isEmpty() || relative.startsWith(base) || base.startsWith(relative)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Path relativize(Path path) {
+        return path.startsWith(root) ? root.relativize(path) : null;
+    }
+}
@@ -0,0 +1,150 @@
+package ru.hse.fmcs;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.*;
+
+/*
+ * Counters of the object store, kept in myGit/stats.json and updated by the store as objects are
+ * written and deleted, so reading them costs nothing. Stored bytes are what the objects take on disk:
+ * a chunked object takes its manifest and every chunk is counted once however many objects share it.
+ * The largest blobs are remembered as they are written. One of them being deleted leaves fewer of
+ * them until the next recount, the store alone can't tell which blob comes after it.
+ */
+public class MyGitStats {
+    public static final int LARGEST_BLOBS = 10;
+
+    public static class Blob {
+        public String hash;
+        public long size;
+
+        public Blob() {
+        }
+
+        public Blob(String hash, long size) {
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+
+    public long objects;
+    public long objectBytes;
+    public long chunks;
+    public long storedBytes;
+    public List<Blob> largestBlobs = new ArrayList<>(); // The largest first
+
+    @JsonIgnore
+    private boolean changed = false;
+
+    public synchronized void addObject(@NotNull String hash, long size, long storedSize) {
+        objects++;
+        objectBytes += size;
+        storedBytes += storedSize;
+        offerBlob(hash, size);
+        changed = true;
+    }
+
+    public synchronized void removeObject(@NotNull String hash, long size, long storedSize) {
+        objects--;
+        objectBytes -= size;
+        storedBytes -= storedSize;
+        largestBlobs.removeIf(blob -> blob.hash.equals(hash));
+        changed = true;
+    }
+
+    public synchronized void addChunk(long size) {
+        chunks++;
+        storedBytes += size;
+        changed = true;
+    }
+
+    public synchronized void removeChunk(long size) {
+        chunks--;
+        storedBytes -= size;
+        changed = true;
+    }
+
+    public synchronized void offerBlob(@NotNull String hash, long size) {
+        if (largestBlobs.size() >= LARGEST_BLOBS && largestBlobs.get(largestBlobs.size() - 1).size >= size) {
+            return;
+        }
+        if (largestBlobs.stream().anyMatch(blob -> blob.hash.equals(hash))) {
+            return;
+        }
+        largestBlobs.add(new Blob(hash, size));
+        largestBlobs.sort(Comparator.comparingLong((Blob blob) -> -blob.size).thenComparing(blob -> blob.hash));
+        if (largestBlobs.size() > LARGEST_BLOBS) {
+            largestBlobs.remove(LARGEST_BLOBS);
+        }
+        changed = true;
+    }
+
+    // Adds the counters of objects written elsewhere, the other stats hold only those
+    public synchronized void add(@NotNull MyGitStats other) {
+        synchronized (other) {
+            objects += other.objects;
+            objectBytes += other.objectBytes;
+            chunks += other.chunks;
+            storedBytes += other.storedBytes;
+            for (Blob blob : other.largestBlobs) {
+                offerBlob(blob.hash, blob.size);
+            }
+        }
+        changed = true;
+    }
+
+    /*
+     * Counts the objects and chunks of the store anew, they are measured by a pool of threads.
+     */
+    public static @NotNull MyGitStats count(@NotNull MyGitObjectStore objects, int threads) throws GitException {
+        List<String> hashes;
+        List<String> chunks;
+        try {
+            hashes = objects.listObjects();
+            chunks = objects.listChunks();
+        } catch (IOException e) {
+            throw new GitException("Can't list objects", e);
+        }
+        MyGitStats stats = new MyGitStats();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (String hash : hashes) {
+            tasks.add(() -> {
+                stats.addObject(hash, objects.size(hash), objects.getStoredSize(hash));
+                return null;
+            });
+        }
+        for (String hash : chunks) {
+            tasks.add(() -> {
+                stats.addChunk(objects.getChunkSize(hash));
+                return null;
+            });
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (Future<Void> result : pool.invokeAll(tasks)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GitException("Count interrupted", e);
+        } catch (ExecutionException e) {
+            throw new GitException("Can't count objects", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        stats.changed = true;
+        return stats;
+    }
+
+    // Whether the counters changed since the last call
+    public synchronized boolean takeChanged() {
+        boolean result = changed;
+        changed = false;
+        return result;
+    }
+}
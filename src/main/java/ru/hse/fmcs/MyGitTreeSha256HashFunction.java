@@ -0,0 +1,98 @@
+package ru.hse.fmcs;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ * Two level sha256: the content is split into fixed-size leaves which are hashed independently,
+ * the result is the sha256 of the leaf digests and the content length.
+ * Full leaves are hashed on the common fork-join pool, so one large file is hashed by all cores.
+ */
+public class MyGitTreeSha256HashFunction implements MyGitHashFunction {
+    static final int LEAF_SIZE = 1 << 20;
+    private static final int INITIAL_PENDING_SIZE = 1 << 12;
+    private static final byte LEAF_TAG = 0;
+    private static final byte ROOT_TAG = 1;
+
+    @Override
+    public @NotNull String getName() {
+        return TREE_SHA256;
+    }
+
+    @Override
+    public @NotNull Hasher newHasher() {
+        return new TreeHasher();
+    }
+
+    private static byte[] hashLeaf(ByteBuffer leaf) {
+        MessageDigest digest = DigestUtils.getSha256Digest();
+        digest.update(LEAF_TAG);
+        digest.update(leaf);
+        return digest.digest();
+    }
+
+    private static class TreeHasher implements Hasher {
+        private final List<CompletableFuture<byte[]>> leaves = new ArrayList<>();
+        // Grows up to a leaf, so hashing small files doesn't allocate a whole leaf
+        private ByteBuffer pending = ByteBuffer.allocate(INITIAL_PENDING_SIZE);
+        private long length = 0;
+
+        @Override
+        public void update(@NotNull ByteBuffer buffer) {
+            length += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                if (pending.position() == 0 && buffer.isDirect() && buffer.remaining() >= LEAF_SIZE) {
+                    // Mapped and direct buffers are not reused by callers, so their leaves are hashed without copying
+                    ByteBuffer leaf = buffer.slice();
+                    leaf.limit(LEAF_SIZE);
+                    buffer.position(buffer.position() + LEAF_SIZE);
+                    submit(leaf);
+                    continue;
+                }
+                if (!pending.hasRemaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.min(pending.capacity() * 2, LEAF_SIZE));
+                    pending.flip();
+                    grown.put(pending);
+                    pending = grown;
+                }
+                int count = Math.min(pending.remaining(), buffer.remaining());
+                ByteBuffer part = buffer.slice();
+                part.limit(count);
+                pending.put(part);
+                buffer.position(buffer.position() + count);
+                if (pending.position() == LEAF_SIZE) {
+                    pending.flip();
+                    submit(pending);
+                    pending = ByteBuffer.allocate(INITIAL_PENDING_SIZE);
+                }
+            }
+        }
+
+        @Override
+        public @NotNull String finish() {
+            MessageDigest root = DigestUtils.getSha256Digest();
+            root.update(ROOT_TAG);
+            for (CompletableFuture<byte[]> leaf : leaves) {
+                root.update(leaf.join());
+            }
+            if (pending.position() > 0 || leaves.isEmpty()) {
+                pending.flip();
+                root.update(hashLeaf(pending));
+            }
+            root.update(ByteBuffer.allocate(Long.BYTES).putLong(0, length));
+            return Hex.encodeHexString(root.digest());
+        }
+
+        private void submit(ByteBuffer leaf) {
+            leaves.add(CompletableFuture.supplyAsync(() -> hashLeaf(leaf), ForkJoinPool.commonPool()));
+        }
+    }
+}
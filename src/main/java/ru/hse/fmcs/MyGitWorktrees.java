@@ -0,0 +1,96 @@
+package ru.hse.fmcs;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Linked worktrees of a repository: extra working directories with their own myGit directory
+ * holding only HEAD (metainf.json), the sparse-checkout cone and a "commondir" file which points
+ * to the myGit directory of the main worktree. Objects, commits, branches and the commit index
+ * are shared through it. The main myGit/worktrees file lists linked worktrees one path per line.
+ */
+public class MyGitWorktrees {
+    public static final String COMMON_DIR_FILE = "commondir";
+
+    private final Path path;
+    private final List<Path> worktrees = new ArrayList<>();
+
+    public MyGitWorktrees(@NotNull Path path) {
+        this.path = path;
+    }
+
+    /*
+     * The myGit directory which keeps shared data of the worktree with the given myGit directory.
+     */
+    public static @NotNull Path getCommonDir(@NotNull Path myGitDir) throws GitException {
+        Path file = myGitDir.resolve(COMMON_DIR_FILE);
+        if (!Files.exists(file)) {
+            return myGitDir;
+        }
+        try {
+            return Path.of(Files.readString(file, StandardCharsets.UTF_8).strip());
+        } catch (IOException e) {
+            throw new GitException("Can't read " + file, e);
+        }
+    }
+
+    public static void setCommonDir(@NotNull Path myGitDir, @NotNull Path commonDir) throws GitException {
+        try {
+            Files.writeString(myGitDir.resolve(COMMON_DIR_FILE), commonDir.toAbsolutePath().normalize() + "\n",
+                    StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new GitException("Can't write " + COMMON_DIR_FILE, e);
+        }
+    }
+
+    public void load() throws GitException {
+        worktrees.clear();
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    worktrees.add(Path.of(line.strip()));
+                }
+            }
+        } catch (IOException e) {
+            throw new GitException("Can't read worktrees", e);
+        }
+    }
+
+    public @NotNull List<Path> getWorktrees() {
+        return Collections.unmodifiableList(worktrees);
+    }
+
+    public void add(@NotNull Path worktree) throws GitException {
+        worktrees.add(worktree);
+        save();
+    }
+
+    public void remove(@NotNull Path worktree) throws GitException {
+        if (worktrees.remove(worktree)) {
+            save();
+        }
+    }
+
+    private void save() throws GitException {
+        try {
+            List<String> lines = new ArrayList<>();
+            for (Path worktree : worktrees) {
+                lines.add(worktree.toString());
+            }
+            Path temp = MyGitFiles.createTempFile(path.getParent(), "worktrees", null);
+            Files.write(temp, lines, StandardCharsets.UTF_8);
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new GitException("Can't update worktrees", e);
+        }
+    }
+}
@@ -5,11 +5,16 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.PrintStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.TrueFileFilter;
@@ -44,6 +49,7 @@ public abstract class AbstractGitTest {
     private ByteArrayOutputStream byteArrayOutputStream;
     private final File projectDir = new File("./playground/");
     private final GitCli cli = createCli(projectDir.getAbsolutePath());
+    private final Map<String, GitCli> otherClis = new HashMap<>();
 
     // ------------------------------------ Различные утильные функции -----------------------------------------
 
@@ -86,6 +92,18 @@ public abstract class AbstractGitTest {
         cli.runCommand(command, arguments);
     }
 
+    private void runCommandIn(@NotNull String directory, @NotNull String command, String... args) throws GitException {
+        List<String> arguments = Arrays.asList(args);
+        String input = (command + " " + String.join(" ", arguments)).trim();
+        output.println(DASHES);
+        output.println("Command in " + directory + ": " + input);
+
+        // One cli per directory, the index lives in it between commands
+        GitCli other = otherClis.computeIfAbsent(directory, name -> createCli(new File(projectDir, name).getAbsolutePath()));
+        other.setOutputStream(output);
+        other.runCommand(command, arguments);
+    }
+
     private void runRelativeCommand(@NotNull String command, int to) throws GitException {
         output.println(DASHES);
         output.println("Command: " + command + " HEAD~" + to);
@@ -105,6 +123,34 @@ public abstract class AbstractGitTest {
         FileUtils.writeStringToFile(file, content, Charset.defaultCharset());
     }
 
+    // head -c size /dev/urandom > fileName, with random bytes fixed by the seed
+    protected void createRandomFile(@NotNull String fileName, int size, long seed) throws Exception {
+        output.println(DASHES);
+        output.println("Create file '" + fileName + "' with " + size + " random bytes of seed " + seed);
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        FileUtils.writeByteArrayToFile(new File(projectDir, fileName), content);
+    }
+
+    // Writes the text over the bytes of the file starting at the offset
+    protected void writeIntoFile(@NotNull String fileName, int offset, @NotNull String text) throws Exception {
+        output.println(DASHES);
+        output.println("Write '" + text + "' into file '" + fileName + "' at offset " + offset);
+        File file = new File(projectDir, fileName);
+        byte[] content = FileUtils.readFileToByteArray(file);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(bytes, 0, content, offset, bytes.length);
+        FileUtils.writeByteArrayToFile(file, content);
+    }
+
+    // cmp first second
+    protected void compareFiles(@NotNull String first, @NotNull String second) throws Exception {
+        output.println(DASHES);
+        output.println("Command: compare files " + first + " and " + second);
+        boolean equal = FileUtils.contentEquals(new File(projectDir, first), new File(projectDir, second));
+        output.println(equal ? "Files are equal" : "Files differ");
+    }
+
     // rm fileName
     protected void deleteFile(@NotNull String fileName) {
         output.println(DASHES);
@@ -121,9 +167,22 @@ public abstract class AbstractGitTest {
         output.println(content);
     }
 
-    // git status
-    protected void status() throws GitException {
-        runCommand(GitConstants.STATUS);
+    // ls directory | wc -l
+    protected void countFiles(@NotNull String directory) {
+        String[] names = new File(projectDir, directory).list();
+        output.println(DASHES);
+        output.println("Command: count files in " + directory);
+        output.println(names == null ? 0 : names.length);
+    }
+
+    // git init args
+    protected void init(String... args) throws GitException {
+        runCommand(GitConstants.INIT, args);
+    }
+
+    // git status args
+    protected void status(String... args) throws GitException {
+        runCommand(GitConstants.STATUS, args);
     }
 
     // git add files
@@ -156,6 +215,15 @@ public abstract class AbstractGitTest {
         runRelativeCommand(GitConstants.CHECKOUT, to);
     }
 
+    // git checkout <first length characters of HEAD~to hash>
+    protected void checkoutRevisionPrefix(int to, int length) throws GitException {
+        output.println(DASHES);
+        output.println("Command: checkout HEAD~" + to + " prefix of length " + length);
+
+        String revision = cli.getRelativeRevisionFromHead(to).substring(0, length);
+        cli.runCommand(GitConstants.CHECKOUT, Collections.singletonList(revision));
+    }
+
     // git checkout master
     protected void checkoutMaster() throws GitException {
         checkoutBranch(GitConstants.MASTER);
@@ -191,6 +259,156 @@ public abstract class AbstractGitTest {
         runCommand(GitConstants.MERGE, branch);
     }
 
+    // git sparse-checkout args
+    protected void sparseCheckout(String... args) throws GitException {
+        runCommand(GitConstants.SPARSE_CHECKOUT, args);
+    }
+
+    // git worktree args
+    protected void worktree(String... args) throws GitException {
+        runCommand(GitConstants.WORKTREE, args);
+    }
+
+    // git clone source destination
+    protected void cloneRepository(String... args) throws GitException {
+        runCommand(GitConstants.CLONE, args);
+    }
+
+    // git bundle args
+    protected void bundle(String... args) throws GitException {
+        runCommand(GitConstants.BUNDLE, args);
+    }
+
+    // git push repository [branch]
+    protected void push(String... args) throws GitException {
+        runCommand(GitConstants.PUSH, args);
+    }
+
+    // git pull repository [branch]
+    protected void pull(String... args) throws GitException {
+        runCommand(GitConstants.PULL, args);
+    }
+
+    // git archive revision args
+    protected void archive(String... args) throws GitException {
+        runCommand(GitConstants.ARCHIVE, args);
+    }
+
+    // git fsck args
+    protected void fsck(String... args) throws GitException {
+        runCommand(GitConstants.FSCK, args);
+    }
+
+    // git gc args
+    protected void gc(String... args) throws GitException {
+        runCommand(GitConstants.GC, args);
+    }
+
+    // git diff args
+    protected void diff(String... args) throws GitException {
+        runCommand(GitConstants.DIFF, args);
+    }
+
+    // git blame args
+    protected void blame(String... args) throws GitException {
+        runCommand(GitConstants.BLAME, args);
+    }
+
+    // git grep args
+    protected void grep(String... args) throws GitException {
+        runCommand(GitConstants.GREP, args);
+    }
+
+    // git fast-import args
+    protected void fastImport(String... args) throws GitException {
+        runCommand(GitConstants.FAST_IMPORT, args);
+    }
+
+    // git stats args
+    protected void stats(String... args) throws GitException {
+        runCommand(GitConstants.STATS, args);
+    }
+
+    // git log, run in the repository in the directory
+    protected void logIn(@NotNull String directory) throws GitException {
+        runCommandIn(directory, GitConstants.LOG);
+    }
+
+    // git show revisionPath, the content is followed by a line break here
+    protected void show(@NotNull String revisionPath) throws GitException {
+        runCommand(GitConstants.SHOW, revisionPath);
+        output.println();
+    }
+
+    // git init args, run in the directory
+    protected void initIn(@NotNull String directory, String... args) throws GitException {
+        runCommandIn(directory, GitConstants.INIT, args);
+    }
+
+    // git add files, run in the repository in the directory
+    protected void addIn(@NotNull String directory, String... files) throws GitException {
+        runCommandIn(directory, GitConstants.ADD, files);
+    }
+
+    // git commit message, run in the repository in the directory
+    protected void commitIn(@NotNull String directory, @NotNull String message) throws GitException {
+        runCommandIn(directory, GitConstants.COMMIT, message);
+    }
+
+    // git fsck args, run in the repository in the directory
+    protected void fsckIn(@NotNull String directory, String... args) throws GitException {
+        runCommandIn(directory, GitConstants.FSCK, args);
+    }
+
+    // git stats args, run in the repository in the directory
+    protected void statsIn(@NotNull String directory, String... args) throws GitException {
+        runCommandIn(directory, GitConstants.STATS, args);
+    }
+
+    // git deepen args, run in the repository in the directory
+    protected void deepenIn(@NotNull String directory, String... args) throws GitException {
+        runCommandIn(directory, GitConstants.DEEPEN, args);
+    }
+
+    // git checkout args, run in the repository in the directory
+    protected void checkoutIn(@NotNull String directory, String... args) throws GitException {
+        runCommandIn(directory, GitConstants.CHECKOUT, args);
+    }
+
+    // git reset args, run in the repository in the directory
+    protected void resetIn(@NotNull String directory, String... args) throws GitException {
+        runCommandIn(directory, GitConstants.RESET, args);
+    }
+
+    // git bundle args, run in the repository in the directory
+    protected void bundleIn(@NotNull String directory, String... args) throws GitException {
+        runCommandIn(directory, GitConstants.BUNDLE, args);
+    }
+
+    // git gc args, run in the repository in the directory
+    protected void gcIn(@NotNull String directory, String... args) throws GitException {
+        runCommandIn(directory, GitConstants.GC, args);
+    }
+
+    // A commit of contents made through MyGitCommitBuilder, files are "path=content" or "-path" to delete
+    protected void commitContents(@NotNull String branch, String... files) throws GitException {
+        output.println(DASHES);
+        output.println("Command: commit of contents to " + branch + ": " + String.join(" ", files));
+
+        MyGitRepository repository = new MyGitRepository(projectDir.getAbsolutePath());
+        MyGitCommitBuilder builder = repository.newCommit(branch).setMessage(String.join(" ", files));
+        for (String file : files) {
+            if (file.startsWith("-")) {
+                builder.delete(file.substring(1));
+            } else {
+                int equals = file.indexOf('=');
+                builder.put(file.substring(0, equals),
+                        ByteBuffer.wrap(file.substring(equals + 1).getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        builder.commit();
+    }
+
     /*
      * echo content > fileName
      * git add fileName
@@ -2,6 +2,38 @@ package ru.hse.fmcs;
 
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 /*
  * Т.к. в коммитах при каждом новом запуске получаются разные хеши и
@@ -168,5 +200,761 @@ public class GitTest extends AbstractGitTest {
 
         check("branchRemove.txt");
     }
-}
 
+    @Test
+    public void testReinit() throws Exception {
+        createFileAndCommit("file.txt", "aaa");
+        init();
+        status();
+        createFile("file.txt", "bbb");
+        status();
+        log();
+        init("--chunk-size=4096");
+        assertThrows(GitException.class, () -> init("--chunk-sise=4096"));
+        assertThrows(GitException.class, () -> init("--hash=sha1"));
+
+        check("reinit.txt");
+    }
+
+    @Test
+    public void testIgnore() throws Exception {
+        createFile(".mygitignore", "build/\n*.log\n");
+        createFile("build/out.txt", "generated");
+        createFile("debug.log", "log");
+        createFile("file.txt", "aaa");
+        status();
+        add(".mygitignore", "file.txt");
+        commit("Add file.txt");
+        status();
+
+        reset(0);
+        fileContent("build/out.txt");
+        fileContent("debug.log");
+        status();
+
+        check("ignore.txt");
+    }
+
+    @Test
+    public void testSparseCheckout() throws Exception {
+        createFile("app/main.txt", "aaa");
+        createFile("lib/util.txt", "bbb");
+        add("app", "lib");
+        commit("Add app and lib");
+
+        sparseCheckout("set", "app");
+        sparseCheckout("list");
+        fileContent("app/main.txt");
+        fileContent("lib/util.txt");
+        status();
+
+        createFile("app/main.txt", "ccc");
+        add("app/main.txt");
+        commit("Change app");
+        reset(1);
+        fileContent("app/main.txt");
+        fileContent("lib/util.txt");
+
+        sparseCheckout("disable");
+        fileContent("lib/util.txt");
+        status();
+
+        check("sparseCheckout.txt");
+    }
+
+    @Test
+    public void testCheckoutPrefix() throws Exception {
+        createFileAndCommit("file.txt", "aaa");
+        createFile("file.txt", "bbb");
+        add("file.txt");
+        commit("Second commit");
+
+        checkoutRevisionPrefix(1, 10);
+        fileContent("file.txt");
+        log();
+        checkoutMaster();
+        fileContent("file.txt");
+
+        check("checkoutPrefix.txt");
+    }
+
+    @Test
+    public void testWorktree() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        worktree("add", "wt", "feature");
+        fileContent("wt/a.txt");
+        status();
+        showBranches();
+
+        createFileAndCommit("b.txt", "bbb");
+        fileContent("wt/b.txt");
+
+        createFile("wt/c.txt", "ccc");
+        worktree("remove", "wt", "--force");
+        fileContent("wt/a.txt");
+        checkoutBranch("feature");
+        log();
+
+        check("worktree.txt");
+    }
+
+    @Test
+    public void testClone() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("dir/b.txt", "bbb");
+        cloneRepository(".", "copy");
+        fileContent("copy/a.txt");
+        fileContent("copy/dir/b.txt");
+        status();
+
+        createFileAndCommit("c.txt", "ccc");
+        fileContent("copy/c.txt");
+        cloneRepository(".", "shared", "--shared");
+        fileContent("shared/c.txt");
+        log();
+        assertThrows(GitException.class, () -> cloneRepository(".", "deep", "--detph=1"));
+
+        check("clone.txt");
+    }
+
+    @Test
+    public void testBundle() throws Exception {
+        createFileAndCommit(".mygitignore", "*.bundle");
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("b.txt", "bbb");
+        bundle("create", "all.bundle", "master");
+        bundle("create", "last.bundle", "HEAD~1..master");
+
+        reset(1);
+        fileContent("b.txt");
+        bundle("unbundle", "last.bundle");
+        fileContent("b.txt");
+        log();
+        bundle("unbundle", "all.bundle");
+
+        check("bundle.txt");
+    }
+
+    @Test
+    public void testUnbundleIntoNewRepository() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("b.txt", "bbb");
+        initIn("fresh");
+        bundle("create", "fresh/all.bundle", "master");
+        bundleIn("fresh", "unbundle", "all.bundle");
+        logIn("fresh");
+        fileContent("fresh/a.txt");
+        fileContent("fresh/b.txt");
+        initIn("other");
+        createFile("other/c.txt", "ccc");
+        addIn("other", "c.txt");
+        commitIn("other", "c");
+        bundle("create", "other/all.bundle", "master");
+        bundleIn("other", "unbundle", "all.bundle");
+
+        check("unbundle-new.txt");
+    }
+
+    @Test
+    public void testPushPull() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        cloneRepository(".", "mirror");
+        createFileAndCommit("b.txt", "bbb");
+        push("mirror");
+
+        createBranch("feature");
+        createFileAndCommit("c.txt", "ccc");
+        push("mirror");
+
+        reset(1);
+        fileContent("c.txt");
+        pull("mirror", "feature");
+        fileContent("c.txt");
+        log();
+
+        check("pushPull.txt");
+    }
+
+    @Test
+    public void testPullKeepsLocalChanges() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        cloneRepository(".", "mirror");
+        createFile("mirror/a.txt", "remote");
+        addIn("mirror", "a.txt");
+        commitIn("mirror", "remote");
+
+        createFile("a.txt", "local");
+        pull("mirror", "master");
+        fileContent("a.txt");
+        createFile("a.txt", "aaa");
+        pull("mirror", "master");
+        fileContent("a.txt");
+
+        check("pull-local-changes.txt");
+    }
+
+    @Test
+    public void testArchive() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("dir/b.txt", "bbb");
+        createFile("a.txt", "changed");
+        archive("master", "--output=release.tar");
+        archive("master", "--format=zip", "--output=release.zip");
+        fileContent("a.txt");
+        status();
+
+        check("archive.txt");
+    }
+
+    @Test
+    public void testFsck() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("b.txt", "bbb");
+        createFileAndCommit("a.txt", "ccc");
+        fsck();
+        fsck("--threads=1", "--max-rate=1M");
+
+        check("fsck.txt");
+    }
+
+    @Test
+    public void testDiff() throws Exception {
+        createFileAndCommit("a.txt", "one\ntwo\nthree\n");
+        createFileAndCommit("b.txt", "bbb");
+        createFile("a.txt", "one\n2\nthree\nfour\n");
+        deleteFile("b.txt");
+        diff();
+        diff("--", "a.txt");
+        diff("HEAD~1", "master");
+
+        check("diff.txt");
+    }
+
+    @Test
+    public void testRenames() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("b.txt", "one\ntwo\nthree\nfour\nfive\nsix\nseven\neight\n");
+        createFileAndCommit("c.txt", "ccc");
+        deleteFile("a.txt");
+        createFile("dir/moved.txt", "aaa");
+        deleteFile("b.txt");
+        createFile("edited.txt", "one\ntwo\nthree\nfour\nfive\nsix\nseven\n8\n");
+        createFile("copy.txt", "ccc");
+        status();
+        add("a.txt", "dir/moved.txt");
+        status();
+        countFiles("myGit/sketches");
+        reset(3);
+        gc("--prune=now");
+        countFiles("myGit/sketches");
+
+        check("renames.txt");
+    }
+
+    @Test
+    public void testBlame() throws Exception {
+        createFile("a.txt", "one\ntwo\nthree\n");
+        add("a.txt");
+        commit("First version");
+        createFileAndCommit("b.txt", "bbb");
+        createFile("a.txt", "one\n2\nthree\nfour\n");
+        add("a.txt");
+        commit("Second version");
+        blame("a.txt");
+        createFile("a.txt", "zero\none\n2\nthree\nfour\n");
+        add("a.txt");
+        commit("Third version");
+        blame("a.txt");
+        blame("a.txt", "HEAD~2");
+        countFiles("myGit/blame");
+        reset(1);
+        countFiles("myGit/blame");
+
+        check("blame.txt");
+    }
+
+    @Test
+    public void testGrep() throws Exception {
+        createFileAndCommit("a.txt", "apple\nbanana\n");
+        createFileAndCommit("dir/b.txt", "apple pie\n");
+        createFileAndCommit("c.txt", "apple\nbanana\n");
+        createFileAndCommit("a.txt", "cherry\nbanana\n");
+        grep("apple");
+        grep("an+a", "HEAD~2..master");
+        grep("apple", "master", "--", "dir");
+
+        check("grep.txt");
+    }
+
+    @Test
+    public void testPorcelain() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("b.txt", "bbb");
+        createFileAndCommit("c.txt", "ccc");
+        createFile("a.txt", "changed");
+        add("a.txt");
+        createFile("a.txt", "changed again");
+        deleteFile("b.txt");
+        add("b.txt");
+        createFile("dir/new.txt", "new");
+        add("dir/new.txt");
+        deleteFile("c.txt");
+        createFile("moved.txt", "ccc");
+        createFile("untracked.txt", "untracked");
+        status("--porcelain");
+        status("--json");
+
+        check("porcelain.txt");
+    }
+
+    @Test
+    public void testFastImport() throws Exception {
+        createFile("stream.txt", "blob\nmark :1\ndata 4\naaa\n\n"
+                + "blob\nmark :2\ndata 3\nbbb\n"
+                + "commit imported\nmark :3\nauthor Test user\ndate 0\ndata 12\nFirst import\n"
+                + "M :1 a.txt\nM :2 dir/b.txt\n\n"
+                + "blob\nmark :4\ndata 8\nchanged\n\n"
+                + "commit imported\ndata 13\nSecond import\nM :4 a.txt\nD dir/b.txt\n\n"
+                + "reset old\nfrom :3\n");
+        fastImport("stream.txt");
+        showBranches();
+        checkoutBranch("old");
+        fileContent("a.txt");
+        fileContent("dir/b.txt");
+        checkoutBranch("imported");
+        fileContent("a.txt");
+        log();
+
+        check("fast-import.txt");
+    }
+
+    @Test
+    public void testFastImportBranchChecks() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFile("master.txt", "commit master\ndata 5\nfails\n\n");
+        assertThrows(GitException.class, () -> fastImport("master.txt"));
+        createFile("branches.txt", "commit other\ndata 5\nother\n\ncommit data\ndata 4\ndata\n\n");
+        fastImport("branches.txt");
+        createFile("reset.txt", "reset data\nfrom master\n");
+        fastImport("reset.txt");
+        createFile("sideways.txt", "commit data\ndata 5\nfails\nfrom other\n\n");
+        assertThrows(GitException.class, () -> fastImport("sideways.txt"));
+        stats();
+        checkoutBranch("data");
+        fileContent("a.txt");
+        log();
+
+        check("fast-import-checks.txt");
+    }
+
+    @Test
+    public void testStats() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("b.txt", "bbbbbb");
+        createFileAndCommit("a.txt", "changed content");
+        stats();
+        reset(1);
+        gc("--prune=now");
+        stats();
+        stats("--verify");
+
+        check("stats.txt");
+    }
+
+    @Test
+    public void testShallow() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("a.txt", "changed");
+        createFileAndCommit("b.txt", "bbb");
+        cloneRepository(".", "shallow", "--depth=2");
+        fileContent("shallow/a.txt");
+        fileContent("shallow/b.txt");
+        logIn("shallow");
+        statsIn("shallow", "--verify");
+        deepenIn("shallow", "..", "1");
+        logIn("shallow");
+        deepenIn("shallow", "..", "5");
+        logIn("shallow");
+        statsIn("shallow", "--verify");
+
+        check("shallow.txt");
+    }
+
+    @Test
+    public void testPartialClone() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("a.txt", "changed");
+        cloneRepository(".", "partial", "--filter=blob:none");
+        fileContent("partial/a.txt");
+        statsIn("partial");
+        checkoutIn("partial", "HEAD~1");
+        fileContent("partial/a.txt");
+        statsIn("partial");
+
+        cloneRepository(".", "limited", "--filter=blob:none", "--cache-limit=8");
+        statsIn("limited");
+        checkoutIn("limited", "HEAD~1");
+        fileContent("limited/a.txt");
+        statsIn("limited");
+        checkoutIn("limited", "master");
+        fileContent("limited/a.txt");
+        statsIn("limited", "--verify");
+
+        check("partial-clone.txt");
+    }
+
+    @Test
+    public void testCommitContents() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        commitContents("data", "x.txt=xxx", "dir/y.txt=yyy");
+        commitContents("data", "-x.txt", "dir/y.txt=changed", "dir/z.txt=zzz");
+        status();
+        checkoutBranch("data");
+        fileContent("a.txt");
+        fileContent("x.txt");
+        fileContent("dir/y.txt");
+        fileContent("dir/z.txt");
+        log();
+        statsIn(".", "--verify");
+
+        check("commit-contents.txt");
+    }
+
+    @Test
+    public void testShow() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("a.txt", "changed");
+        createFileAndCommit("dir/b.txt", "bbb");
+        show("HEAD:a.txt");
+        show("HEAD~1:a.txt");
+        show("HEAD~2:a.txt");
+        show("master:dir/b.txt");
+        status();
+        fileContent("a.txt");
+
+        check("show.txt");
+    }
+
+    @Test
+    public void testSharedObjects() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFile("b.txt", "aaa");
+        add("b.txt");
+        rm("b.txt");
+        fsck();
+        createFile("a.txt", "changed");
+        checkoutFiles("--", "a.txt");
+        fileContent("a.txt");
+        createFileAndCommit("b.txt", "aaa");
+        reset(1);
+        fsck();
+        log();
+        fileContent("a.txt");
+        fileContent("b.txt");
+
+        check("shared-objects.txt");
+    }
+
+    @Test
+    public void testGc() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFileAndCommit("a.txt", "bbb");
+        createFile("b.txt", "staged");
+        add("b.txt");
+        reset(1);
+        gc();
+        gc("--prune=now");
+        fsck();
+        status();
+        fileContent("a.txt");
+        assertThrows(GitException.class, () -> gc("--prune=soon"));
+        assertThrows(GitException.class, () -> gc("--aggressive"));
+
+        check("gc.txt");
+    }
+
+    @Test
+    public void testChunking() throws Exception {
+        initIn("chunked", "--chunk-threshold=1000", "--chunk-size=4096");
+        createRandomFile("chunked/big.bin", 200000, 1);
+        createRandomFile("original.bin", 200000, 1);
+        addIn("chunked", "big.bin");
+        commitIn("chunked", "big.bin");
+        statsIn("chunked");
+        writeIntoFile("chunked/big.bin", 100000, "edited");
+        addIn("chunked", "big.bin");
+        commitIn("chunked", "edited");
+        statsIn("chunked");
+        checkoutIn("chunked", "HEAD~1");
+        compareFiles("chunked/big.bin", "original.bin");
+        checkoutIn("chunked", "master");
+        compareFiles("chunked/big.bin", "original.bin");
+        fsckIn("chunked");
+        createFile("chunked/myGit/chunks/02158cabb28ceedee70489dac66a2794b9f89411842a95ad353c9351384d7b4e", "broken");
+        assertThrows(GitException.class, () -> fsckIn("chunked"));
+
+        check("chunking.txt");
+    }
+
+    @Test
+    public void testChunkGc() throws Exception {
+        initIn("chunked", "--chunk-threshold=1000", "--chunk-size=4096");
+        createBranch("data");
+        createRandomFile("big.bin", 200000, 1);
+        add("big.bin");
+        commit("big file");
+        bundle("create", "chunked/big.bundle", "data");
+        bundleIn("chunked", "unbundle", "big.bundle");
+        checkoutIn("chunked", "data");
+        compareFiles("chunked/big.bin", "big.bin");
+        writeIntoFile("chunked/big.bin", 100000, "edited");
+        addIn("chunked", "big.bin");
+        commitIn("chunked", "edited");
+        statsIn("chunked");
+        resetIn("chunked", "HEAD~1");
+        gcIn("chunked", "--prune=now");
+        statsIn("chunked", "--verify");
+        fsckIn("chunked");
+        checkoutIn("chunked", "data");
+        compareFiles("chunked/big.bin", "big.bin");
+
+        check("chunk-gc.txt");
+    }
+
+    /*
+     * Commit hashes are random, so commits sharing a prefix are written into the index directly.
+     * More of them are removed than the scan reports, as reset leaves them in the journal.
+     */
+    @Test
+    public void testTempFilesLeftBehind() throws Exception {
+        createFileAndCommit("a.txt", "aaa");
+        createFile("myGit/commits/tmp-123.json", "");
+        logIn(".");
+        createFile("b.txt", "bbb");
+        addIn(".", "b.txt");
+        fileContent("myGit/commits/tmp-123.json");
+
+        check("temp-files.txt");
+    }
+
+    @Test
+    public void testCommitIndexSkipsRemoved(@TempDir Path dir) throws Exception {
+        List<String> hashes = new ArrayList<>();
+        for (int i = 0; i < 8; ++i) {
+            hashes.add("abcd" + i + "0".repeat(35));
+        }
+        MyGitCommitIndex commitIndex = new MyGitCommitIndex(dir.resolve("commit-index"));
+        commitIndex.open(hashes);
+        for (String hash : hashes.subList(0, 7)) {
+            commitIndex.remove(hash);
+        }
+        assertEquals(hashes.get(7), commitIndex.resolve("abcd"));
+        commitIndex.remove(hashes.get(7));
+        assertNull(commitIndex.resolve("abcd"));
+    }
+
+    @Test
+    public void testReadersAlongsideWriter(@TempDir Path dir) throws Exception {
+        openRepository(dir).init();
+        MyGitRepository writer = openRepository(dir);
+        writer.newCommit("data").put("data.txt", dataContent(0)).commit();
+
+        List<Thread> readers = new ArrayList<>();
+        List<Throwable> failures = new ArrayList<>();
+        Thread writing = new Thread(() -> {
+            try {
+                for (int i = 1; i <= 30; ++i) {
+                    writer.newCommit("data").put("data.txt", dataContent(i)).commit();
+                }
+            } catch (Throwable e) {
+                synchronized (failures) {
+                    failures.add(e);
+                }
+            }
+        });
+        for (int r = 0; r < 4; ++r) {
+            readers.add(new Thread(() -> {
+                try {
+                    MyGitRepository reader = openRepository(dir);
+                    int last = 0;
+                    while (writing.isAlive() || last < 30) {
+                        String content;
+                        try (InputStream in = reader.newInputStream("data", "data.txt")) {
+                            content = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                        }
+                        // Every commit writes the same counter on each line, a torn read mixes them
+                        String[] lines = content.split("\n");
+                        int counter = Integer.parseInt(lines[0]);
+                        for (String line : lines) {
+                            assertEquals(lines[0], line);
+                        }
+                        assertTrue(counter >= last);
+                        last = counter;
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        writing.start();
+        readers.forEach(Thread::start);
+        writing.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(List.of(), failures);
+    }
+
+    @Test
+    public void testWriterWaitsForFileLock(@TempDir Path dir) throws Exception {
+        MyGitRepository repository = openRepository(dir);
+        repository.init();
+        repository.newCommit("data").put("data.txt", dataContent(0)).commit();
+
+        Process holder = startLockHolder(dir, false);
+        try {
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread writing = new Thread(() -> {
+                try {
+                    openRepository(dir).newCommit("data").put("data.txt", dataContent(1)).commit();
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            writing.start();
+            writing.join(1000);
+            assertTrue(writing.isAlive());
+
+            holder.getOutputStream().close();
+            writing.join(10000);
+            assertFalse(writing.isAlive());
+            assertNull(failure.get());
+        } finally {
+            holder.destroy();
+            holder.waitFor();
+        }
+        try (InputStream in = openRepository(dir).newInputStream("data", "data.txt")) {
+            assertEquals(dataContent(1), ByteBuffer.wrap(in.readAllBytes()));
+        }
+    }
+
+    @Test
+    public void testReadersDontWrite(@TempDir Path dir) throws Exception {
+        MyGitRepository repository = openRepository(dir);
+        repository.init();
+        repository.newCommit("data").put("data.txt", dataContent(0)).commit();
+        Path metainf = dir.resolve("myGit").resolve("metainf.json");
+        BasicFileAttributes written = Files.readAttributes(metainf, BasicFileAttributes.class);
+
+        // A reader in another process holds the shared lock, the write lock would wait for it
+        Process holder = startLockHolder(dir, true);
+        try {
+            assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                MyGitRepository reader = openRepository(dir);
+                reader.status();
+                reader.log("data");
+                reader.show(List.of("data:data.txt"));
+                try (InputStream in = reader.newInputStream("data", "data.txt")) {
+                    assertEquals(dataContent(0), ByteBuffer.wrap(in.readAllBytes()));
+                }
+            });
+        } finally {
+            holder.destroy();
+            holder.waitFor();
+        }
+        BasicFileAttributes read = Files.readAttributes(metainf, BasicFileAttributes.class);
+        assertEquals(written.fileKey(), read.fileKey());
+        assertEquals(written.lastModifiedTime(), read.lastModifiedTime());
+    }
+
+    @Test
+    public void testPartialCloneReaders(@TempDir Path dir) throws Exception {
+        Path source = Files.createDirectory(dir.resolve("source"));
+        Path clone = dir.resolve("clone");
+        MyGitRepository repository = openRepository(source);
+        repository.init();
+        repository.newCommit("data").put("data.txt", dataContent(0)).put("other.txt", dataContent(1)).commit();
+        repository.cloneRepository(List.of(".", clone.toString(), "--filter=blob:none"));
+
+        // Objects are fetched and counted while another reader holds the shared lock
+        Process holder = startLockHolder(clone, true);
+        try {
+            assertTimeoutPreemptively(Duration.ofSeconds(30), () -> {
+                openRepository(clone).show(List.of("data:data.txt"));
+                try (InputStream in = openRepository(clone).newInputStream("data", "other.txt")) {
+                    assertEquals(dataContent(1), ByteBuffer.wrap(in.readAllBytes()));
+                }
+            });
+        } finally {
+            holder.destroy();
+            holder.waitFor();
+        }
+        ByteArrayOutputStream verified = new ByteArrayOutputStream();
+        MyGitRepository checker = openRepository(clone);
+        checker.setOutputStream(new PrintStream(verified, true, StandardCharsets.UTF_8));
+        checker.stats(List.of("--verify"));
+        assertTrue(verified.toString(StandardCharsets.UTF_8).startsWith("Counters are correct\nObjects: 2 "),
+                verified.toString(StandardCharsets.UTF_8));
+        // Fetched objects are copies, evicting them frees space and using them leaves the source as it was
+        try (Stream<Path> files = Files.list(clone.resolve("myGit").resolve("files"))) {
+            for (Path fetched : files.collect(Collectors.toList())) {
+                assertFalse(Files.isSameFile(fetched, source.resolve("myGit").resolve("files").resolve(fetched.getFileName())));
+            }
+        }
+    }
+
+    @Test
+    public void testFilePermissions(@TempDir Path dir) throws Exception {
+        assumeTrue(dir.getFileSystem().supportedFileAttributeViews().contains("posix"));
+        MyGitRepository repository = openRepository(dir);
+        repository.init();
+        repository.newCommit("data").put("data.txt", dataContent(0)).commit();
+
+        // Files of the repository get the permissions the umask leaves to any new file
+        Set<PosixFilePermission> expected = Files.getPosixFilePermissions(Files.createFile(dir.resolve("plain.txt")));
+        try (Stream<Path> files = Files.walk(dir.resolve("myGit"))) {
+            for (Path path : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                if (!path.getFileName().toString().equals("lock")) {
+                    assertEquals(expected, Files.getPosixFilePermissions(path), path.toString());
+                }
+            }
+        }
+    }
+
+    private static MyGitRepository openRepository(Path dir) throws GitException {
+        MyGitRepository repository = new MyGitRepository(dir.toString());
+        repository.setOutputStream(new PrintStream(OutputStream.nullOutputStream()));
+        return repository;
+    }
+
+    // File locks of one JVM can't overlap, another process holds the lock of the repository
+    private static Process startLockHolder(Path dir, boolean shared) throws Exception {
+        Process holder = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), LockHolder.class.getName(),
+                dir.resolve("myGit").resolve("lock").toString(), Boolean.toString(shared))
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        BufferedReader holderOutput = new BufferedReader(new InputStreamReader(holder.getInputStream(), StandardCharsets.UTF_8));
+        assertEquals("locked", holderOutput.readLine());
+        return holder;
+    }
+
+    private static ByteBuffer dataContent(int counter) {
+        return ByteBuffer.wrap((counter + "\n").repeat(10000).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Holds the lock of the file given as the first argument, shared if the second one is true, until the standard input is closed
+    public static class LockHolder {
+        public static void main(String[] args) throws Exception {
+            try (FileChannel channel = FileChannel.open(Path.of(args[0]), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock(0, Long.MAX_VALUE, Boolean.parseBoolean(args[1]));
+                System.out.println("locked");
+                System.out.flush();
+                System.in.readAllBytes();
+                lock.release();
+            }
+        }
+    }
+}
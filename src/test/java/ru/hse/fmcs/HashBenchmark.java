@@ -0,0 +1,68 @@
+package ru.hse.fmcs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Compares throughput of the content hash functions on files of different sizes.
+ * Run with `gradle hashBenchmark`, sizes in megabytes can be passed as arguments.
+ */
+public class HashBenchmark {
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MIN_ROUNDS = 5;
+    private static final long MIN_MEASURED_NANOS = 1_000_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        long[] sizes = args.length == 0 ? new long[]{0, 1, 16, 256, 1024} : new long[args.length];
+        for (int i = 0; i < args.length; ++i) {
+            sizes[i] = Long.parseLong(args[i]);
+        }
+        List<MyGitHashFunction> functions = List.of(
+                MyGitHashFunction.forName(MyGitHashFunction.MD5),
+                MyGitHashFunction.forName(MyGitHashFunction.TREE_SHA256));
+        System.out.printf("%-12s %10s %12s%n", "function", "size", "MB/s");
+        for (long megabytes : sizes) {
+            long bytes = megabytes == 0 ? 4096 : megabytes << 20;
+            Path file = createFile(bytes);
+            try {
+                for (MyGitHashFunction function : functions) {
+                    for (int i = 0; i < WARMUP_ROUNDS; ++i) {
+                        function.hash(file);
+                    }
+                    long start = System.nanoTime();
+                    int rounds = 0;
+                    while (rounds < MIN_ROUNDS || System.nanoTime() - start < MIN_MEASURED_NANOS) {
+                        function.hash(file);
+                        rounds++;
+                    }
+                    double seconds = (System.nanoTime() - start) / 1e9;
+                    double throughput = bytes * (double) rounds / seconds / (1 << 20);
+                    System.out.printf("%-12s %10s %12.1f%n", function.getName(), formatSize(bytes), throughput);
+                }
+            } finally {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static Path createFile(long bytes) throws IOException {
+        Path file = Files.createTempFile("hash-benchmark", null);
+        Random random = new Random(42);
+        byte[] block = new byte[1 << 20];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < bytes; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, bytes - written));
+            }
+        }
+        return file;
+    }
+
+    private static String formatSize(long bytes) {
+        return bytes < (1 << 20) ? (bytes >> 10) + "K" : (bytes >> 20) + "M";
+    }
+}